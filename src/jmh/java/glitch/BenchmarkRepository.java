@@ -0,0 +1,125 @@
+package glitch;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import glitch.GitRepository.Branch;
+import glitch.GitRepository.Dir;
+import glitch.GitRepository.Ident;
+
+/**
+ * Synthetic repository shared by benchmarks.
+ * Files are spread over directories of the given depth, and each history step rewrites one file.
+ * @author yohei224
+ */
+class BenchmarkRepository {
+
+  static final Ident IDENT = new Ident("bench", "bench@example.com");
+
+  /** Directories per level */
+  private static final int FANOUT = 4;
+
+  final GitRepository repo;
+  final Branch master;
+  final List<String> paths = new ArrayList<String>();
+
+  private final File dir;
+  private final int fileCount;
+  private final int depth;
+  private final byte[][] contents;
+  private final Random random = new Random(224);
+  private int revision;
+
+  BenchmarkRepository(int fileCount, int depth, int blobSize) throws IOException {
+    this.dir = Files.createTempDirectory("glitch-bench").toFile();
+    this.repo = GitRepository.getInstance(this.dir);
+    this.master = this.repo.branch("master");
+    this.fileCount = fileCount;
+    this.depth = depth;
+    this.contents = new byte[fileCount][];
+
+    for (int i = 0; i < fileCount; i++) {
+      this.contents[i] = new byte[blobSize];
+      this.random.nextBytes(this.contents[i]);
+      this.paths.add(this.path(i));
+    }
+  }
+
+  private String path(int index) {
+    StringBuilder sb = new StringBuilder();
+    int n = index;
+    for (int level = 0; level < this.depth; level++) {
+      sb.append("d").append(n % FANOUT).append('/');
+      n /= FANOUT;
+    }
+    return sb.append("f").append(index).append(".bin").toString();
+  }
+
+  /**
+   * Rewrite one file and build the whole tree.
+   * @return
+   * @throws IOException
+   */
+  Dir nextDir() throws IOException {
+    byte[] changed = this.contents[this.revision % this.fileCount];
+    this.random.nextBytes(changed);
+    this.revision++;
+
+    Dir root = new Dir();
+    for (int i = 0; i < this.fileCount; i++) {
+      String[] names = this.paths.get(i).split("/");
+      Dir parent = root;
+      for (int level = 0; level < names.length - 1; level++) {
+        Dir child = parent.dir(names[level]);
+        if (child == null) {
+          child = new Dir(names[level]);
+          parent.put(child);
+        }
+        parent = child;
+      }
+      parent.put(names[names.length - 1], this.contents[i].clone());
+    }
+    return root;
+  }
+
+  /**
+   * Commit history of given length onto branch, tagging every tenth commit.
+   * @param branch
+   * @param historyLength
+   * @throws IOException
+   */
+  void grow(Branch branch, int historyLength) throws IOException {
+    for (int i = 0; i < historyLength; i++) {
+      GitRepository.Commit commit = branch.commit(this.nextDir(), "commit " + i, IDENT);
+      if (i % 10 == 0) {
+        commit.addTag(branch.name + "-" + i, "tag " + i, IDENT);
+      }
+    }
+  }
+
+  void close() throws IOException {
+    this.repo.close();
+    Files.walkFileTree(this.dir.toPath(), new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+        Files.delete(file);
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+        Files.delete(dir);
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+
+}
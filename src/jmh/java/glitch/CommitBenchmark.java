@@ -0,0 +1,71 @@
+package glitch;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import glitch.GitRepository.Commit;
+import glitch.GitRepository.Dir;
+
+/**
+ * Benchmark of Branch.commit. Trees are prepared outside of measurement.
+ * @author yohei224
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CommitBenchmark {
+
+  @Param({ "100", "1000" })
+  public int fileCount;
+
+  @Param({ "1", "3" })
+  public int depth;
+
+  @Param({ "64", "16384" })
+  public int blobSize;
+
+  @Param({ "10", "100" })
+  public int historyLength;
+
+  private BenchmarkRepository fixture;
+  private Dir dir;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    this.fixture = new BenchmarkRepository(this.fileCount, this.depth, this.blobSize);
+    this.fixture.grow(this.fixture.master, this.historyLength);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    this.fixture.close();
+  }
+
+  @Setup(Level.Invocation)
+  public void prepare() throws IOException {
+    this.dir = this.fixture.nextDir();
+  }
+
+  @Benchmark
+  public Commit commit() throws IOException {
+    return this.fixture.master.commit(this.dir, "bench commit", BenchmarkRepository.IDENT);
+  }
+
+}
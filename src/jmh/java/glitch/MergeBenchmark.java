@@ -0,0 +1,72 @@
+package glitch;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import glitch.GitRepository.Branch;
+
+/**
+ * Benchmark of Branch.mergeTo. Each invocation merges a fresh single-commit branch into master.
+ * @author yohei224
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MergeBenchmark {
+
+  @Param({ "100", "1000" })
+  public int fileCount;
+
+  @Param({ "1", "3" })
+  public int depth;
+
+  @Param({ "64", "16384" })
+  public int blobSize;
+
+  @Param({ "10", "100" })
+  public int historyLength;
+
+  private BenchmarkRepository fixture;
+  private Branch feature;
+  private int merges;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    this.fixture = new BenchmarkRepository(this.fileCount, this.depth, this.blobSize);
+    this.fixture.grow(this.fixture.master, this.historyLength);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    this.fixture.close();
+  }
+
+  @Setup(Level.Invocation)
+  public void prepare() throws IOException {
+    this.feature = this.fixture.master.createNewBranch("feature-" + this.merges++);
+    this.feature.commit(this.fixture.nextDir(), "feature commit", BenchmarkRepository.IDENT);
+  }
+
+  @Benchmark
+  public boolean mergeTo() throws IOException {
+    return this.feature.mergeTo(this.fixture.master, BenchmarkRepository.IDENT, true);
+  }
+
+}
@@ -0,0 +1,102 @@
+package glitch;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import glitch.GitRepository.Commit;
+import glitch.GitRepository.Dir;
+import glitch.GitRepository.Tag;
+
+/**
+ * Benchmarks of read paths over a repository which is not modified during measurement.
+ * @author yohei224
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ReadBenchmark {
+
+  @Param({ "100", "1000" })
+  public int fileCount;
+
+  @Param({ "1", "3" })
+  public int depth;
+
+  @Param({ "64", "16384" })
+  public int blobSize;
+
+  @Param({ "10", "100" })
+  public int historyLength;
+
+  private BenchmarkRepository fixture;
+  private Commit head;
+  private int next;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    this.fixture = new BenchmarkRepository(this.fileCount, this.depth, this.blobSize);
+    this.fixture.grow(this.fixture.master, this.historyLength);
+    this.head = this.fixture.master.head();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    this.fixture.close();
+  }
+
+  @Benchmark
+  public Dir getDir() throws IOException {
+    return this.head.getDir();
+  }
+
+  @Benchmark
+  public long getStream() throws IOException {
+    String path = this.fixture.paths.get(this.next++ % this.fileCount);
+    byte[] buf = new byte[8192];
+    long total = 0;
+    try (InputStream in = this.head.getStream(path)) {
+      for (int n; (n = in.read(buf)) > 0;) {
+        total += n;
+      }
+    }
+    return total;
+  }
+
+  @Benchmark
+  public List<String> listFiles() throws IOException {
+    return this.head.listFiles();
+  }
+
+  @Benchmark
+  public List<Commit> listCommits() throws IOException {
+    return this.fixture.master.listCommits();
+  }
+
+  @Benchmark
+  public void listTags(Blackhole blackhole) throws IOException {
+    for (Tag tag : this.fixture.repo.listTags()) {
+      blackhole.consume(tag.name);
+    }
+  }
+
+}
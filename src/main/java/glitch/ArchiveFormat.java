@@ -0,0 +1,27 @@
+package glitch;
+
+import java.io.OutputStream;
+
+/**
+ * Formats of Commit.exportArchive.
+ * @author yohei224
+ */
+public enum ArchiveFormat {
+
+  ZIP {
+    @Override
+    ArchiveWriter newWriter(OutputStream out) {
+      return new ArchiveWriter.Zip(out);
+    }
+  },
+
+  TAR {
+    @Override
+    ArchiveWriter newWriter(OutputStream out) {
+      return new ArchiveWriter.Tar(out);
+    }
+  };
+
+  abstract ArchiveWriter newWriter(OutputStream out);
+
+}
@@ -0,0 +1,216 @@
+package glitch;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.eclipse.jgit.lib.FileMode;
+
+/**
+ * Writes archive entries one by one into a stream, without buffering whole entries.
+ * The underlying stream is flushed but never closed.
+ * @author yohei224
+ */
+abstract class ArchiveWriter {
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  /**
+   * Append an entry.
+   * @param path
+   * @param mode
+   * @param size
+   * @param time seconds since epoch
+   * @param content stream of exactly size bytes
+   * @throws IOException
+   */
+  abstract void putEntry(String path, FileMode mode, long size, int time, InputStream content) throws IOException;
+
+  /**
+   * Write trailer and flush.
+   * @throws IOException
+   */
+  abstract void finish() throws IOException;
+
+  static long copy(InputStream in, OutputStream out, byte[] buf) throws IOException {
+    long total = 0;
+    for (int n; (n = in.read(buf)) > 0;) {
+      out.write(buf, 0, n);
+      total += n;
+    }
+    return total;
+  }
+
+  /** zip */
+  static class Zip extends ArchiveWriter {
+    private final ZipOutputStream out;
+    private final byte[] buf = new byte[BUFFER_SIZE];
+
+    Zip(OutputStream out) {
+      this.out = new ZipOutputStream(out, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    void putEntry(String path, FileMode mode, long size, int time, InputStream content) throws IOException {
+      ZipEntry entry = new ZipEntry(path);
+      entry.setTime(time * 1000L);
+      entry.setSize(size);
+      this.out.putNextEntry(entry);
+      copy(content, this.out, this.buf);
+      this.out.closeEntry();
+    }
+
+    @Override
+    void finish() throws IOException {
+      this.out.finish();
+      this.out.flush();
+    }
+  }
+
+  /** POSIX ustar, with pax headers for long paths and sizes over 8GiB. */
+  static class Tar extends ArchiveWriter {
+    private static final int BLOCK = 512;
+    private static final long MAX_OCTAL_SIZE = 077777777777L;
+
+    private final OutputStream out;
+    private final byte[] buf = new byte[BUFFER_SIZE];
+
+    Tar(OutputStream out) {
+      this.out = out;
+    }
+
+    @Override
+    void putEntry(String path, FileMode mode, long size, int time, InputStream content) throws IOException {
+      byte[] name = path.getBytes(StandardCharsets.UTF_8);
+      boolean symlink = mode == FileMode.SYMLINK;
+      String linkName = null;
+      if (symlink) {
+        byte[] target = new byte[(int) size];
+        int read = 0;
+        for (int n; read < target.length && (n = content.read(target, read, target.length - read)) > 0;) {
+          read += n;
+        }
+        linkName = new String(target, 0, read, StandardCharsets.UTF_8);
+      }
+
+      int split = splitName(name);
+      boolean paxPath = split < 0;
+      boolean paxSize = size > MAX_OCTAL_SIZE;
+      boolean paxLink = linkName != null && linkName.getBytes(StandardCharsets.UTF_8).length > 100;
+      if (paxPath || paxSize || paxLink) {
+        StringBuilder records = new StringBuilder();
+        if (paxPath) {
+          records.append(paxRecord("path", path));
+        }
+        if (paxSize) {
+          records.append(paxRecord("size", Long.toString(size)));
+        }
+        if (paxLink) {
+          records.append(paxRecord("linkpath", linkName));
+        }
+        byte[] pax = records.toString().getBytes(StandardCharsets.UTF_8);
+        this.writeHeader("././@PaxHeader".getBytes(StandardCharsets.US_ASCII), -1, 0644, pax.length, time, 'x', null);
+        this.out.write(pax);
+        this.pad(pax.length);
+      }
+
+      int unixMode = mode == FileMode.EXECUTABLE_FILE ? 0755 : symlink ? 0777 : 0644;
+      long headerSize = symlink ? 0 : size;
+      this.writeHeader(paxPath ? Arrays.copyOf(name, 100) : name, paxPath ? -1 : split, unixMode,
+          paxSize ? 0 : headerSize, time, symlink ? '2' : '0', paxLink ? null : linkName);
+
+      if (!symlink) {
+        long written = copy(content, this.out, this.buf);
+        if (written != size) {
+          throw new IOException("Size of " + path + " changed while archiving.");
+        }
+        this.pad(size);
+      }
+    }
+
+    @Override
+    void finish() throws IOException {
+      this.out.write(new byte[BLOCK * 2]);
+      this.out.flush();
+    }
+
+    /**
+     * Returns index of '/' to split name into prefix and name, length of name if it fits as is,
+     * or -1 if pax header is needed.
+     */
+    private static int splitName(byte[] name) {
+      if (name.length <= 100) {
+        return name.length;
+      }
+      for (int i = Math.min(name.length - 1, 155); i > 0; i--) {
+        if (name[i] == '/' && name.length - i - 1 <= 100) {
+          return i;
+        }
+      }
+      return -1;
+    }
+
+    private static String paxRecord(String key, String value) {
+      String body = " " + key + "=" + value + "\n";
+      int length = body.getBytes(StandardCharsets.UTF_8).length;
+      int total = length + Integer.toString(length).length();
+      if (Integer.toString(total).length() != Integer.toString(length).length()) {
+        total++;
+      }
+      return total + body;
+    }
+
+    private void writeHeader(byte[] name, int split, int mode, long size, int time, char type, String linkName)
+        throws IOException {
+      byte[] header = new byte[BLOCK];
+      if (split < 0 || split == name.length) {
+        System.arraycopy(name, 0, header, 0, Math.min(name.length, 100));
+      } else {
+        System.arraycopy(name, split + 1, header, 0, name.length - split - 1);
+        System.arraycopy(name, 0, header, 345, split);
+      }
+      octal(header, 100, 8, mode);
+      octal(header, 108, 8, 0);
+      octal(header, 116, 8, 0);
+      octal(header, 124, 12, size);
+      octal(header, 136, 12, time & 0xFFFFFFFFL);
+      header[156] = (byte) type;
+      if (linkName != null) {
+        byte[] link = linkName.getBytes(StandardCharsets.UTF_8);
+        System.arraycopy(link, 0, header, 157, link.length);
+      }
+      System.arraycopy("ustar\u000000".getBytes(StandardCharsets.US_ASCII), 0, header, 257, 8);
+
+      Arrays.fill(header, 148, 156, (byte) ' ');
+      long checksum = 0;
+      for (byte b : header) {
+        checksum += b & 0xFF;
+      }
+      octal(header, 148, 7, checksum);
+      this.out.write(header);
+    }
+
+    /** Zero padded octal terminated by NUL. */
+    private static void octal(byte[] header, int offset, int length, long value) {
+      String s = Long.toOctalString(value);
+      int digits = length - 1;
+      for (int i = 0; i < digits; i++) {
+        int from = s.length() - digits + i;
+        header[offset + i] = (byte) (from < 0 ? '0' : s.charAt(from));
+      }
+      header[offset + digits] = 0;
+    }
+
+    private void pad(long size) throws IOException {
+      int rest = (int) (size % BLOCK);
+      if (rest != 0) {
+        this.out.write(new byte[BLOCK - rest]);
+      }
+    }
+  }
+
+}
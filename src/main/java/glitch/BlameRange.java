@@ -0,0 +1,54 @@
+package glitch;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.PersonIdent;
+
+/**
+ * Consecutive lines of a file last changed by the same commit, returned by Commit.blame.
+ * @author yohei224
+ */
+public class BlameRange {
+
+  /** 1-based number of first line */
+  public final int firstLine;
+
+  /** number of lines */
+  public final int lineCount;
+
+  /** commit which last changed these lines */
+  public final ObjectId commitId;
+
+  /** author of that commit */
+  public final PersonIdent author;
+
+  BlameRange(int firstLine, int lineCount, ObjectId commitId, PersonIdent author) {
+    this.firstLine = firstLine;
+    this.lineCount = lineCount;
+    this.commitId = commitId;
+    this.author = author;
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (this == obj) {
+      return true;
+    }
+    if (!(obj instanceof BlameRange)) {
+      return false;
+    }
+    BlameRange other = (BlameRange) obj;
+    return this.firstLine == other.firstLine && this.lineCount == other.lineCount
+        && this.commitId.equals(other.commitId) && this.author.equals(other.author);
+  }
+
+  @Override
+  public int hashCode() {
+    return ((this.firstLine * 31 + this.lineCount) * 31 + this.commitId.hashCode()) * 31 + this.author.hashCode();
+  }
+
+  @Override
+  public String toString() {
+    return this.firstLine + "+" + this.lineCount + " " + this.commitId.name() + " " + this.author.getName();
+  }
+
+}
@@ -0,0 +1,432 @@
+package glitch;
+
+import static org.eclipse.jgit.lib.RefDatabase.ALL;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.eclipse.jgit.diff.DiffAlgorithm;
+import org.eclipse.jgit.diff.DiffAlgorithm.SupportedAlgorithm;
+import org.eclipse.jgit.diff.Edit;
+import org.eclipse.jgit.diff.RawText;
+import org.eclipse.jgit.diff.RawTextComparator;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevObject;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.TreeWalk;
+
+/**
+ * Computes and caches blame of files.
+ * Blame of a commit is derived from blame of its parents and the diff against them, so only versions not cached yet
+ * are diffed. Ancestors are processed with an explicit stack, oldest first. Results are kept per (path, commit) in an
+ * LRU cache; a commit which did not change the file shares the entry of the commit holding its ranges. If the
+ * repository has a directory, ranges of commits which changed the file are also kept in files, as is the requested
+ * commit, as an alias if it did not change the file. Files of commits no ref reaches anymore are deleted by prune.
+ * @author yohei224
+ */
+class Blamer {
+
+  private static final int CACHE_SIZE = 1024;
+  private static final String MAGIC = "glitch-blame";
+  private static final int VERSION = 2;
+  private static final byte RANGES = 0;
+  private static final byte ALIAS = 1;
+
+  private static final DiffAlgorithm DIFF = DiffAlgorithm.getAlgorithm(SupportedAlgorithm.HISTOGRAM);
+
+  private final GitRepository git;
+  private final Repository repo;
+  private final Path dir;
+
+  /** Entries by commit:path, guarded by itself */
+  private final Map<String, Cached> cache = new LinkedHashMap<String, Cached>(16, 0.75f, true) {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Cached> eldest) {
+      return this.size() > CACHE_SIZE;
+    }
+  };
+
+  /**
+   * @param git
+   * @param repo
+   * @param dir directory of persistent cache, or null to keep in memory only
+   */
+  Blamer(GitRepository git, Repository repo, Path dir) {
+    this.git = git;
+    this.repo = repo;
+    this.dir = dir;
+  }
+
+  /**
+   * Blame of path at commit.
+   * @param commitId
+   * @param path
+   * @return
+   * @throws FileNotFoundException if path is not a file in commit
+   * @throws IOException
+   */
+  List<BlameRange> blame(ObjectId commitId, String path) throws IOException {
+    Cached cached = this.lookup(commitId, path);
+    if (cached != null) {
+      return cached.ranges;
+    }
+
+    try (RevWalk walk = new RevWalk(this.repo)) {
+      ObjectReader reader = walk.getObjectReader();
+      RevCommit start = walk.parseCommit(commitId);
+      ObjectId blobId = blobOf(reader, start, path);
+      if (blobId == null) {
+        throw new FileNotFoundException("Couldnt find file.");
+      }
+
+      Map<ObjectId, Version> versions = new HashMap<ObjectId, Version>();
+      Version first = new Version(start, blobId);
+      versions.put(start, first);
+      Deque<Version> stack = new ArrayDeque<Version>();
+      stack.push(first);
+      while (!stack.isEmpty()) {
+        Version version = stack.peek();
+        if (version.entry != null) {
+          stack.pop();
+          continue;
+        }
+        if (version.parents == null) {
+          // visit parents first, this version is computed when it is on top again.
+          version.parents = new ArrayList<Version>();
+          for (RevCommit parent : version.commit.getParents()) {
+            walk.parseHeaders(parent);
+            Version parentVersion = versions.get(parent);
+            if (parentVersion == null) {
+              ObjectId parentBlobId = blobOf(reader, parent, path);
+              if (parentBlobId == null) {
+                continue;
+              }
+              parentVersion = new Version(parent, parentBlobId);
+              parentVersion.entry = this.lookup(parent, path);
+              versions.put(parent, parentVersion);
+            }
+            version.parents.add(parentVersion);
+            if (parentVersion.entry == null) {
+              stack.push(parentVersion);
+            }
+          }
+          continue;
+        }
+        stack.pop();
+        version.entry = this.compute(version);
+        this.store(version.commit, path, version.entry, version == first);
+      }
+      return first.entry.ranges;
+    }
+  }
+
+  private Cached compute(Version version) throws IOException {
+    for (Version parent : version.parents) {
+      if (parent.blobId.equals(version.blobId)) {
+        return parent.entry;
+      }
+    }
+
+    RawText text = this.text(version.blobId);
+    BlameRange[] origins = new BlameRange[text.size()];
+    for (Version parent : version.parents) {
+      RawText parentText = this.text(parent.blobId);
+      BlameRange[] parentOrigins = expand(parent.entry.ranges, parentText.size());
+      int a = 0;
+      int b = 0;
+      List<Edit> edits = new ArrayList<Edit>(DIFF.diff(RawTextComparator.DEFAULT, parentText, text));
+      edits.add(new Edit(parentText.size(), parentText.size(), text.size(), text.size()));
+      for (Edit edit : edits) {
+        for (; b < edit.getBeginB(); a++, b++) {
+          if (origins[b] == null) {
+            origins[b] = parentOrigins[a];
+          }
+        }
+        a = edit.getEndA();
+        b = edit.getEndB();
+      }
+    }
+
+    ObjectId commitId = version.commit.copy();
+    PersonIdent author = version.commit.getAuthorIdent();
+    List<BlameRange> ranges = new ArrayList<BlameRange>();
+    for (int i = 0; i < origins.length;) {
+      ObjectId origin = origins[i] != null ? origins[i].commitId : commitId;
+      int j = i + 1;
+      while (j < origins.length && origin.equals(origins[j] != null ? origins[j].commitId : commitId)) {
+        j++;
+      }
+      ranges.add(new BlameRange(i + 1, j - i, origin, origins[i] != null ? origins[i].author : author));
+      i = j;
+    }
+    return new Cached(commitId, Collections.unmodifiableList(ranges));
+  }
+
+  private static BlameRange[] expand(List<BlameRange> ranges, int lineCount) {
+    BlameRange[] lines = new BlameRange[lineCount];
+    for (BlameRange range : ranges) {
+      for (int i = range.firstLine - 1; i < range.firstLine - 1 + range.lineCount && i < lineCount; i++) {
+        lines[i] = range;
+      }
+    }
+    return lines;
+  }
+
+  private RawText text(ObjectId blobId) throws IOException {
+    return new RawText(this.git.open(blobId).getCachedBytes(Integer.MAX_VALUE));
+  }
+
+  private static ObjectId blobOf(ObjectReader reader, RevCommit commit, String path) throws IOException {
+    try (TreeWalk treeWalk = TreeWalk.forPath(reader, path, commit.getTree())) {
+      if (treeWalk == null || (treeWalk.getRawMode(0) & FileMode.TYPE_MASK) == FileMode.TYPE_TREE
+          || treeWalk.getFileMode(0) == FileMode.GITLINK) {
+        return null;
+      }
+      return treeWalk.getObjectId(0);
+    }
+  }
+
+  private Cached lookup(ObjectId commitId, String path) throws IOException {
+    String key = commitId.name() + ":" + path;
+    Cached entry;
+    synchronized (this.cache) {
+      entry = this.cache.get(key);
+    }
+    if (entry == null && this.dir != null) {
+      entry = this.read(commitId, path);
+      if (entry != null) {
+        synchronized (this.cache) {
+          this.cache.put(key, entry);
+        }
+      }
+    }
+    this.git.fireCacheAccessed("blame", entry != null);
+    return entry;
+  }
+
+  /**
+   * @param commitId
+   * @param path
+   * @param entry
+   * @param requested whether commitId is the one blame was asked for, else it is written only if it holds the ranges
+   * @throws IOException
+   */
+  private void store(ObjectId commitId, String path, Cached entry, boolean requested) throws IOException {
+    synchronized (this.cache) {
+      this.cache.put(commitId.name() + ":" + path, entry);
+    }
+    if (this.dir != null && (requested || entry.owner.equals(commitId))) {
+      this.write(commitId, path, entry);
+    }
+  }
+
+  private Path file(ObjectId commitId, String path) {
+    String name = ObjectId.fromRaw(Constants.newMessageDigest().digest(
+        (commitId.name() + ":" + path).getBytes(StandardCharsets.UTF_8))).name();
+    return this.dir.resolve(name.substring(0, 2)).resolve(name.substring(2));
+  }
+
+  private Cached read(ObjectId commitId, String path) throws IOException {
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(this.file(commitId,
+        path))))) {
+      if (!MAGIC.equals(in.readUTF()) || in.readInt() != VERSION) {
+        return null;
+      }
+      byte kind = in.readByte();
+      if (!readId(in).equals(commitId)) {
+        return null;
+      }
+      ObjectId owner = readId(in);
+      if (kind == ALIAS) {
+        return owner.equals(commitId) ? null : this.read(owner, path);
+      }
+      int count = in.readInt();
+      List<BlameRange> ranges = new ArrayList<BlameRange>(count);
+      for (int i = 0; i < count; i++) {
+        int firstLine = in.readInt();
+        int lineCount = in.readInt();
+        ObjectId origin = readId(in);
+        String name = in.readUTF();
+        String email = in.readUTF();
+        long when = in.readLong();
+        int tz = in.readInt();
+        ranges.add(new BlameRange(firstLine, lineCount, origin, new PersonIdent(name, email, when, tz)));
+      }
+      return new Cached(owner, Collections.unmodifiableList(ranges));
+    } catch (FileNotFoundException | NoSuchFileException e) {
+      return null;
+    } catch (EOFException | UTFDataFormatException e) {
+      // broken, computed again.
+      return null;
+    }
+  }
+
+  private void write(ObjectId commitId, String path, Cached entry) throws IOException {
+    Path file = this.file(commitId, path);
+    Files.createDirectories(file.getParent());
+    Path tmp = Files.createTempFile(file.getParent(), "blame-", ".tmp");
+    try {
+      try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+        out.writeUTF(MAGIC);
+        out.writeInt(VERSION);
+        boolean alias = !entry.owner.equals(commitId);
+        out.writeByte(alias ? ALIAS : RANGES);
+        writeId(out, commitId);
+        writeId(out, entry.owner);
+        if (!alias) {
+          out.writeInt(entry.ranges.size());
+          for (BlameRange range : entry.ranges) {
+            out.writeInt(range.firstLine);
+            out.writeInt(range.lineCount);
+            writeId(out, range.commitId);
+            out.writeUTF(range.author.getName());
+            out.writeUTF(range.author.getEmailAddress());
+            out.writeLong(range.author.getWhen().getTime());
+            out.writeInt(range.author.getTimeZoneOffset());
+          }
+        }
+      }
+      Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(tmp);
+    }
+  }
+
+  /**
+   * Delete files of commits no ref reaches, such as those dropped by compaction, and files of older formats.
+   * Entries in memory are left to the LRU.
+   * @return number of files deleted
+   * @throws IOException
+   */
+  int prune() throws IOException {
+    if (this.dir == null || !Files.isDirectory(this.dir)) {
+      return 0;
+    }
+    Set<ObjectId> reachable = new HashSet<ObjectId>();
+    try (RevWalk walk = new RevWalk(this.repo)) {
+      for (Ref ref : this.repo.getRefDatabase().getRefs(ALL).values()) {
+        if (ref.getObjectId() == null) {
+          continue;
+        }
+        RevObject target = walk.peel(walk.parseAny(ref.getObjectId()));
+        if (target instanceof RevCommit) {
+          walk.markStart((RevCommit) target);
+        }
+      }
+      for (RevCommit commit : walk) {
+        reachable.add(commit.copy());
+      }
+    }
+
+    int deleted = 0;
+    try (DirectoryStream<Path> shards = Files.newDirectoryStream(this.dir)) {
+      for (Path shard : shards) {
+        if (!Files.isDirectory(shard)) {
+          continue;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(shard)) {
+          for (Path file : files) {
+            if (file.getFileName().toString().endsWith(".tmp")) {
+              // being written.
+              continue;
+            }
+            ObjectId commitId = commitOf(file);
+            if ((commitId == null || !reachable.contains(commitId)) && Files.deleteIfExists(file)) {
+              deleted++;
+            }
+          }
+        }
+      }
+    }
+    return deleted;
+  }
+
+  /**
+   * Commit a file is of.
+   * @param file
+   * @return or null if the file is of an older format or broken
+   * @throws IOException
+   */
+  private static ObjectId commitOf(Path file) throws IOException {
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+      if (!MAGIC.equals(in.readUTF()) || in.readInt() != VERSION) {
+        return null;
+      }
+      in.readByte();
+      return readId(in);
+    } catch (EOFException | UTFDataFormatException e) {
+      return null;
+    } catch (NoSuchFileException e) {
+      // deleted meanwhile.
+      return null;
+    }
+  }
+
+  private static ObjectId readId(DataInputStream in) throws IOException {
+    byte[] raw = new byte[Constants.OBJECT_ID_LENGTH];
+    in.readFully(raw);
+    return ObjectId.fromRaw(raw);
+  }
+
+  private static void writeId(DataOutputStream out, ObjectId id) throws IOException {
+    byte[] raw = new byte[Constants.OBJECT_ID_LENGTH];
+    id.copyRawTo(raw, 0);
+    out.write(raw);
+  }
+
+  /** Ranges of a file, held by owner, the commit which last changed it. */
+  private static class Cached {
+    final ObjectId owner;
+    final List<BlameRange> ranges;
+
+    Cached(ObjectId owner, List<BlameRange> ranges) {
+      this.owner = owner;
+      this.ranges = ranges;
+    }
+  }
+
+  /** File at a commit, while computing. */
+  private static class Version {
+    final RevCommit commit;
+    final ObjectId blobId;
+    List<Version> parents;
+    Cached entry;
+
+    Version(RevCommit commit, ObjectId blobId) {
+      this.commit = commit;
+      this.blobId = blobId;
+    }
+  }
+
+}
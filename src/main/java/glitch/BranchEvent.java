@@ -0,0 +1,48 @@
+package glitch;
+
+import org.eclipse.jgit.lib.ObjectId;
+
+/**
+ * Change of a branch head, delivered to BranchListener.
+ * Changes made in quick succession are coalesced, so oldId is the head before the first and newId after the last.
+ * @author yohei224
+ */
+public class BranchEvent {
+
+  /** name of branch, without refs/heads/ */
+  public final String branch;
+
+  /** head before change, zeroId if branch was created */
+  public final ObjectId oldId;
+
+  /** head after change, zeroId if branch was deleted */
+  public final ObjectId newId;
+
+  BranchEvent(String branch, ObjectId oldId, ObjectId newId) {
+    this.branch = branch;
+    this.oldId = oldId;
+    this.newId = newId;
+  }
+
+  /**
+   * Returns is branch created.
+   * @return
+   */
+  public boolean isCreate() {
+    return this.oldId.equals(ObjectId.zeroId());
+  }
+
+  /**
+   * Returns is branch deleted.
+   * @return
+   */
+  public boolean isDelete() {
+    return this.newId.equals(ObjectId.zeroId());
+  }
+
+  @Override
+  public String toString() {
+    return this.branch + " " + this.oldId.name() + " -> " + this.newId.name();
+  }
+
+}
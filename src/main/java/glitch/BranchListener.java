@@ -0,0 +1,16 @@
+package glitch;
+
+/**
+ * Subscriber of branch changes, see GitRepository.subscribe.
+ * Events are delivered in order per branch on a single dispatcher thread shared by all subscribers of a repository.
+ * @author yohei224
+ */
+public interface BranchListener {
+
+  /**
+   * Called after a branch head changed.
+   * @param event
+   */
+  void branchChanged(BranchEvent event);
+
+}
@@ -0,0 +1,314 @@
+package glitch;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefUpdate.Result;
+import org.eclipse.jgit.lib.Repository;
+
+/**
+ * Delivers branch changes to subscribers.
+ * Updates through GitRepository are reported by its listener callback, and updates by others are found by watching
+ * loose refs and packed-refs and comparing heads with the last known ones. Changes are delivered after a short delay,
+ * merging all changes of a branch within it into one event.
+ * @author yohei224
+ */
+class BranchWatcher extends RepositoryListener.Adapter implements Closeable {
+
+  /** Delay of delivery, during which changes are coalesced */
+  static final long COALESCE_MILLIS = 50;
+
+  private final Repository repo;
+  private final List<BranchListener> listeners = new CopyOnWriteArrayList<BranchListener>();
+  private final ScheduledExecutorService dispatcher;
+
+  /** Heads known to subscribers, guarded by this */
+  private final Map<String, ObjectId> heads = new HashMap<String, ObjectId>();
+
+  /** Changes not delivered yet, oldId and newId by branch, guarded by this */
+  private final Map<String, ObjectId[]> pending = new LinkedHashMap<String, ObjectId[]>();
+
+  private boolean flushScheduled;
+  private boolean rescanScheduled;
+
+  private final WatchService watchService;
+  private final Path refsHeads;
+  private final Thread watchThread;
+
+  BranchWatcher(Repository repo) throws IOException {
+    this.repo = repo;
+    for (Ref ref : repo.getRefDatabase().getRefs(Constants.R_HEADS).values()) {
+      this.heads.put(ref.getName().substring(Constants.R_HEADS.length()), ref.getObjectId());
+    }
+    this.dispatcher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "glitch-branch-events");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+
+    File gitDir = repo.getDirectory();
+    if (gitDir == null) {
+      this.watchService = null;
+      this.refsHeads = null;
+      this.watchThread = null;
+      return;
+    }
+    this.refsHeads = new File(gitDir, Constants.R_HEADS).toPath();
+    Files.createDirectories(this.refsHeads);
+    this.watchService = FileSystems.getDefault().newWatchService();
+    gitDir.toPath().register(this.watchService, StandardWatchEventKinds.ENTRY_CREATE,
+        StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+    this.registerAll(this.refsHeads);
+    this.watchThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        BranchWatcher.this.watch();
+      }
+    }, "glitch-branch-watch");
+    this.watchThread.setDaemon(true);
+    this.watchThread.start();
+  }
+
+  void add(BranchListener listener) {
+    this.listeners.add(listener);
+  }
+
+  /**
+   * Remove listener.
+   * @param listener
+   * @return true if no listener remains
+   */
+  boolean remove(BranchListener listener) {
+    this.listeners.remove(listener);
+    return this.listeners.isEmpty();
+  }
+
+  @Override
+  public void refUpdated(String refName, ObjectId oldId, ObjectId newId, Result result) {
+    if (!refName.startsWith(Constants.R_HEADS)) {
+      return;
+    }
+    switch (result) {
+    case NEW:
+    case FAST_FORWARD:
+    case FORCED:
+      this.updated(refName, oldId, newId);
+      break;
+    default:
+      break;
+    }
+  }
+
+  private synchronized void updated(String refName, ObjectId oldId, ObjectId newId) {
+    String branch = refName.substring(Constants.R_HEADS.length());
+    ObjectId known = this.heads.get(branch);
+    ObjectId head = newId;
+    if (!oldId.equals(known != null ? known : ObjectId.zeroId())) {
+      // reported out of order by concurrent updates, so take the head as it is now.
+      try {
+        Ref ref = this.repo.exactRef(refName);
+        head = ref != null ? ref.getObjectId() : ObjectId.zeroId();
+      } catch (IOException e) {
+        // keep the reported one.
+      }
+    }
+    this.changed(branch, head);
+  }
+
+  /**
+   * Record head of branch, to be delivered if it differs from the known one.
+   * @param branch
+   * @param newId zeroId if deleted
+   */
+  private synchronized void changed(String branch, ObjectId newId) {
+    ObjectId oldId = this.heads.get(branch);
+    if (oldId == null) {
+      oldId = ObjectId.zeroId();
+    }
+    if (oldId.equals(newId)) {
+      return;
+    }
+    if (newId.equals(ObjectId.zeroId())) {
+      this.heads.remove(branch);
+    } else {
+      this.heads.put(branch, newId.copy());
+    }
+
+    ObjectId[] change = this.pending.get(branch);
+    if (change == null) {
+      this.pending.put(branch, new ObjectId[] { oldId, newId.copy() });
+    } else {
+      change[1] = newId.copy();
+    }
+    if (!this.flushScheduled) {
+      this.flushScheduled = true;
+      this.schedule(new Runnable() {
+        @Override
+        public void run() {
+          BranchWatcher.this.flush();
+        }
+      });
+    }
+  }
+
+  private void flush() {
+    List<BranchEvent> events = new ArrayList<BranchEvent>();
+    synchronized (this) {
+      this.flushScheduled = false;
+      for (Entry<String, ObjectId[]> change : this.pending.entrySet()) {
+        ObjectId[] ids = change.getValue();
+        // changed back within the delay.
+        if (!ids[0].equals(ids[1])) {
+          events.add(new BranchEvent(change.getKey(), ids[0], ids[1]));
+        }
+      }
+      this.pending.clear();
+    }
+    for (BranchEvent event : events) {
+      for (BranchListener listener : this.listeners) {
+        try {
+          listener.branchChanged(event);
+        } catch (RuntimeException e) {
+          // a failing subscriber must not stop others.
+        }
+      }
+    }
+  }
+
+  /**
+   * Compare heads on disk with known ones.
+   */
+  private synchronized void rescan() {
+    // refs are read while holding the lock, so an update reported meanwhile is never overwritten by older heads.
+    this.rescanScheduled = false;
+    Map<String, ObjectId> current = new HashMap<String, ObjectId>();
+    try {
+      for (Ref ref : this.repo.getRefDatabase().getRefs(Constants.R_HEADS).values()) {
+        current.put(ref.getName().substring(Constants.R_HEADS.length()), ref.getObjectId());
+      }
+    } catch (IOException e) {
+      // retried on next change of refs.
+      return;
+    }
+    Set<String> branches = new HashSet<String>(this.heads.keySet());
+    branches.addAll(current.keySet());
+    for (String branch : branches) {
+      ObjectId newId = current.get(branch);
+      this.changed(branch, newId != null ? newId : ObjectId.zeroId());
+    }
+  }
+
+  private void watch() {
+    try {
+      while (true) {
+        WatchKey key = this.watchService.take();
+        Path dir = (Path) key.watchable();
+        boolean refsChanged = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+          if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+            refsChanged = true;
+            continue;
+          }
+          Path name = (Path) event.context();
+          String fileName = name.toString();
+          if (fileName.endsWith(".lock")) {
+            continue;
+          }
+          if (!dir.startsWith(this.refsHeads)) {
+            refsChanged |= fileName.equals(Constants.PACKED_REFS);
+            continue;
+          }
+          Path child = dir.resolve(name);
+          if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(child)) {
+            this.registerAll(child);
+          }
+          refsChanged = true;
+        }
+        key.reset();
+        if (refsChanged) {
+          this.scheduleRescan();
+        }
+      }
+    } catch (InterruptedException | ClosedWatchServiceException e) {
+      // closed.
+    } catch (IOException e) {
+      // stop watching, updates through this library are still delivered.
+    }
+  }
+
+  private synchronized void scheduleRescan() {
+    if (!this.rescanScheduled) {
+      this.rescanScheduled = true;
+      this.schedule(new Runnable() {
+        @Override
+        public void run() {
+          BranchWatcher.this.rescan();
+        }
+      });
+    }
+  }
+
+  private void schedule(Runnable task) {
+    try {
+      this.dispatcher.schedule(task, COALESCE_MILLIS, TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      // closed.
+    }
+  }
+
+  private void registerAll(Path dir) throws IOException {
+    dir.register(this.watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY,
+        StandardWatchEventKinds.ENTRY_DELETE);
+    try (DirectoryStream<Path> children = Files.newDirectoryStream(dir)) {
+      for (Path child : children) {
+        if (Files.isDirectory(child)) {
+          this.registerAll(child);
+        }
+      }
+    }
+  }
+
+  @Override
+  public void close() {
+    this.listeners.clear();
+    this.dispatcher.shutdownNow();
+    if (this.watchService != null) {
+      try {
+        this.watchService.close();
+      } catch (IOException e) {
+        // nothing to do on close.
+      }
+    }
+  }
+
+}
@@ -0,0 +1,296 @@
+package glitch;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jgit.internal.storage.dfs.DfsGarbageCollector;
+import org.eclipse.jgit.internal.storage.dfs.DfsRepository;
+import org.eclipse.jgit.internal.storage.file.FileRepository;
+import org.eclipse.jgit.internal.storage.file.GC;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.RefUpdate.Result;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.TagBuilder;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevObject;
+import org.eclipse.jgit.revwalk.RevSort;
+import org.eclipse.jgit.revwalk.RevTag;
+import org.eclipse.jgit.revwalk.RevWalk;
+
+/**
+ * Drops old history of branches by their retention policies.
+ * Commits not kept are squashed: each dropped parent of a kept commit is replaced by a root commit with its tree, so
+ * merges across the cut keep the trees of all their parents. Kept commits are written again on top of those roots with
+ * the same trees and metadata. Refs are moved by compare-and-swap, retrying with backoff if a
+ * writer moved the branch meanwhile, so neither readers nor writers wait. Unreachable objects are left to pruning.
+ * @author yohei224
+ */
+class Compactor {
+
+  /** Prefix of refs marking tags of dropped commits, by tag name */
+  static final String DROPPED = "refs/glitch/dropped-tags/";
+
+  private final GitRepository git;
+  private final Repository repo;
+
+  Compactor(GitRepository git, Repository repo) {
+    this.git = git;
+    this.repo = repo;
+  }
+
+  /**
+   * Compact history of branch.
+   * @param branchName
+   * @param policy
+   * @param now in milliseconds
+   * @return number of commits dropped
+   * @throws IOException also if writers kept moving the branch for all attempts
+   */
+  int compact(String branchName, RetentionPolicy policy, long now) throws IOException {
+    String refName = Constants.R_HEADS + branchName;
+    for (int attempt = 1;; attempt++) {
+      Ref ref = this.repo.exactRef(refName);
+      if (ref == null || ref.getObjectId() == null) {
+        return 0;
+      }
+      ObjectId oldHeadId = ref.getObjectId();
+
+      try (RevWalk walk = new RevWalk(this.repo); ObjectInserter inserter = this.git.newObjectInserter()) {
+        walk.sort(RevSort.TOPO, true);
+        walk.sort(RevSort.COMMIT_TIME_DESC, true);
+        walk.markStart(walk.parseCommit(oldHeadId));
+
+        // kept commits are a prefix of topological order, so all descendants of a kept commit are kept too.
+        List<RevCommit> kept = new ArrayList<RevCommit>();
+        Set<ObjectId> dropped = new HashSet<ObjectId>();
+        for (RevCommit commit : walk) {
+          if (dropped.isEmpty() && policy.retains(kept.size(), commit.getCommitTime(), now)) {
+            kept.add(commit);
+          } else {
+            dropped.add(commit.copy());
+          }
+        }
+        // roots which kept commits are on, like those of an earlier squash, stay as they are.
+        for (RevCommit commit : kept) {
+          for (RevCommit parent : commit.getParents()) {
+            if (parent.getParentCount() == 0) {
+              dropped.remove(parent);
+            }
+          }
+        }
+        if (dropped.isEmpty()) {
+          // nothing older, or already squashed.
+          return 0;
+        }
+
+        // kept commits in reverse topological order, so parents are rewritten before children.
+        Map<ObjectId, ObjectId> rewritten = new HashMap<ObjectId, ObjectId>();
+        Map<ObjectId, ObjectId> roots = new HashMap<ObjectId, ObjectId>();
+        for (int i = kept.size() - 1; i >= 0; i--) {
+          RevCommit commit = kept.get(i);
+          Set<ObjectId> parentIds = new LinkedHashSet<ObjectId>();
+          for (RevCommit parent : commit.getParents()) {
+            ObjectId parentId = rewritten.get(parent);
+            if (parentId == null && dropped.contains(parent)) {
+              parentId = roots.get(parent);
+              if (parentId == null) {
+                parentId = this.squash(parent, inserter);
+                roots.put(parent.copy(), parentId);
+              }
+            }
+            parentIds.add(parentId != null ? parentId : parent);
+          }
+          CommitBuilder builder = new CommitBuilder();
+          builder.setTreeId(commit.getTree());
+          builder.setParentIds(new ArrayList<ObjectId>(parentIds));
+          builder.setAuthor(commit.getAuthorIdent());
+          builder.setCommitter(commit.getCommitterIdent());
+          builder.setEncoding(commit.getEncoding());
+          builder.setMessage(commit.getFullMessage());
+          rewritten.put(commit.copy(), inserter.insert(builder));
+        }
+        inserter.flush();
+
+        ObjectId newHeadId = rewritten.get(oldHeadId);
+        RefUpdate refUpdate = this.repo.updateRef(refName);
+        refUpdate.setExpectedOldObjectId(oldHeadId);
+        refUpdate.setNewObjectId(newHeadId);
+        refUpdate.setForceUpdate(true);
+        Result result = refUpdate.update(walk);
+        this.git.fireRefUpdated(refName, oldHeadId, newHeadId, result);
+        if (result == Result.LOCK_FAILURE && attempt < GitRepository.MAX_UPDATE_ATTEMPTS) {
+          // a writer committed meanwhile, compact again from its commit.
+          GitRepository.backoff(attempt);
+          continue;
+        }
+        if (result != Result.FORCED && result != Result.FAST_FORWARD && result != Result.NEW) {
+          throw new IOException("Failed to compact branch " + branchName + ": " + result);
+        }
+
+        this.updateTags(rewritten, dropped, inserter);
+        return dropped.size();
+      }
+    }
+  }
+
+  /**
+   * Insert root commit standing for commit and its history.
+   * @param commit dropped parent of a kept commit
+   * @param inserter
+   * @return id of root commit
+   * @throws IOException
+   */
+  private ObjectId squash(RevCommit commit, ObjectInserter inserter) throws IOException {
+    CommitBuilder root = new CommitBuilder();
+    root.setTreeId(commit.getTree());
+    root.setAuthor(commit.getAuthorIdent());
+    root.setCommitter(commit.getCommitterIdent());
+    root.setEncoding(commit.getEncoding());
+    root.setMessage("Squash history up to " + commit.name() + "\n\n" + commit.getFullMessage());
+    return inserter.insert(root);
+  }
+
+  /**
+   * Retarget tags of kept commits to rewritten ones, and mark tags of dropped commits for deleteDroppedTags.
+   * @param rewritten new id by old id of kept commits
+   * @param dropped
+   * @param inserter
+   * @throws IOException
+   */
+  private void updateTags(Map<ObjectId, ObjectId> rewritten, Set<ObjectId> dropped, ObjectInserter inserter)
+      throws IOException {
+    try (RevWalk walk = new RevWalk(this.repo)) {
+      for (Ref ref : this.repo.getRefDatabase().getRefs(Constants.R_TAGS).values()) {
+        if (ref.getObjectId() == null) {
+          continue;
+        }
+        RevObject tagged = walk.parseAny(ref.getObjectId());
+        RevObject target = walk.peel(tagged);
+        if (dropped.contains(target)) {
+          RefUpdate refUpdate = this.repo.updateRef(DROPPED + ref.getName().substring(Constants.R_TAGS.length()));
+          refUpdate.setNewObjectId(ref.getObjectId());
+          refUpdate.setForceUpdate(true);
+          refUpdate.update();
+          continue;
+        }
+        ObjectId newTargetId = rewritten.get(target);
+        if (newTargetId == null) {
+          continue;
+        }
+        ObjectId newId = newTargetId;
+        if (tagged instanceof RevTag) {
+          RevTag tag = (RevTag) tagged;
+          TagBuilder builder = new TagBuilder();
+          builder.setTag(tag.getTagName());
+          builder.setTagger(tag.getTaggerIdent());
+          builder.setMessage(tag.getFullMessage());
+          builder.setObjectId(newTargetId, Constants.OBJ_COMMIT);
+          newId = inserter.insert(builder);
+          inserter.flush();
+        }
+        this.updateTag(ref, newId);
+      }
+    }
+  }
+
+  /**
+   * Delete tags of commits dropped by this compaction or an earlier one, once no branch reaches them.
+   * Those would otherwise keep dropped history from being pruned. Other tags are left alone, also if no branch reaches
+   * them, and so are marked tags moved by others since.
+   * @return number of tags deleted
+   * @throws IOException
+   */
+  int deleteDroppedTags() throws IOException {
+    Map<String, Ref> marks = this.repo.getRefDatabase().getRefs(DROPPED);
+    if (marks.isEmpty()) {
+      return 0;
+    }
+    int deleted = 0;
+    try (RevWalk walk = new RevWalk(this.repo)) {
+      for (Ref ref : this.repo.getRefDatabase().getRefs(Constants.R_HEADS).values()) {
+        if (ref.getObjectId() != null) {
+          walk.markStart(walk.parseCommit(ref.getObjectId()));
+        }
+      }
+      Set<ObjectId> reachable = new HashSet<ObjectId>();
+      for (RevCommit commit : walk) {
+        reachable.add(commit.copy());
+      }
+
+      for (Map.Entry<String, Ref> entry : marks.entrySet()) {
+        Ref mark = entry.getValue();
+        Ref tag = this.repo.exactRef(Constants.R_TAGS + entry.getKey());
+        if (tag != null && mark.getObjectId().equals(tag.getObjectId())) {
+          if (reachable.contains(walk.peel(walk.parseAny(tag.getObjectId())))) {
+            continue;
+          }
+          this.updateTag(tag, null);
+          deleted++;
+        }
+        RefUpdate refUpdate = this.repo.updateRef(mark.getName());
+        refUpdate.setExpectedOldObjectId(mark.getObjectId());
+        refUpdate.setForceUpdate(true);
+        refUpdate.delete();
+      }
+    }
+    return deleted;
+  }
+
+  /**
+   * Move tag unless others moved it meanwhile.
+   * @param ref
+   * @param newId or null to delete
+   * @throws IOException
+   */
+  private void updateTag(Ref ref, ObjectId newId) throws IOException {
+    RefUpdate refUpdate = this.repo.updateRef(ref.getName());
+    refUpdate.setExpectedOldObjectId(ref.getObjectId());
+    refUpdate.setForceUpdate(true);
+    Result result;
+    if (newId != null) {
+      refUpdate.setNewObjectId(newId);
+      result = refUpdate.update();
+    } else {
+      result = refUpdate.delete();
+    }
+    this.git.fireRefUpdated(ref.getName(), ref.getObjectId(), newId != null ? newId : ObjectId.zeroId(), result);
+  }
+
+  /**
+   * Delete objects no ref reaches, once they are older than grace.
+   * Readers still holding dropped commits keep working until then.
+   * @param grace in milliseconds
+   * @throws IOException
+   */
+  void prune(long grace) throws IOException {
+    if (this.repo instanceof FileRepository) {
+      GC gc = new GC((FileRepository) this.repo);
+      gc.setExpireAgeMillis(grace);
+      gc.setPackExpireAgeMillis(grace);
+      try {
+        gc.gc();
+      } catch (ParseException e) {
+        throw new IOException(e);
+      }
+    } else if (this.repo instanceof DfsRepository) {
+      DfsGarbageCollector gc = new DfsGarbageCollector((DfsRepository) this.repo);
+      gc.setGarbageTtl(Math.max(grace, 1), TimeUnit.MILLISECONDS);
+      gc.pack(NullProgressMonitor.INSTANCE);
+    }
+  }
+
+}
@@ -0,0 +1,230 @@
+package glitch;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.eclipse.jgit.diff.RawText;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectLoader;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevTree;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.PathFilter;
+
+/**
+ * Lazy result of Commit.search.
+ * The tree is walked once, blobs shared by several paths are scanned once, and scanning runs on worker threads
+ * which hand matches over through a bounded queue. Matches come in order of completion, not of paths.
+ * Close this when leaving before the end, to stop workers.
+ * @author yohei224
+ */
+public class ContentSearch implements Iterator<SearchMatch>, Closeable {
+
+  /** Blobs larger than this are skipped */
+  static final long MAX_BLOB_SIZE = 16 * 1024 * 1024;
+
+  /** Bytes inspected to detect binary, same as git */
+  private static final int BINARY_PEEK = 8000;
+
+  private static final int QUEUE_SIZE = 1024;
+
+  private static final Object END = new Object();
+
+  private final GitRepository git;
+  private final Repository repo;
+  private final Pattern pattern;
+  private final BlockingQueue<Object> queue = new LinkedBlockingQueue<Object>(QUEUE_SIZE);
+  private final ExecutorService executor;
+  private Object next;
+
+  ContentSearch(GitRepository git, Repository repo, RevTree tree, Pattern pattern, String pathPrefix)
+      throws IOException {
+    this.git = git;
+    this.repo = repo;
+    this.pattern = pattern;
+
+    Map<ObjectId, List<String>> blobs = new LinkedHashMap<ObjectId, List<String>>();
+    try (TreeWalk treeWalk = new TreeWalk(repo)) {
+      treeWalk.addTree(tree);
+      treeWalk.setRecursive(true);
+      if (pathPrefix != null && !pathPrefix.isEmpty()) {
+        treeWalk.setFilter(PathFilter.create(pathPrefix));
+      }
+      while (treeWalk.next()) {
+        FileMode mode = treeWalk.getFileMode(0);
+        if (mode != FileMode.REGULAR_FILE && mode != FileMode.EXECUTABLE_FILE) {
+          continue;
+        }
+        ObjectId blobId = treeWalk.getObjectId(0);
+        List<String> paths = blobs.get(blobId);
+        if (paths == null) {
+          paths = new ArrayList<String>(1);
+          blobs.put(blobId, paths);
+        }
+        paths.add(treeWalk.getPathString());
+      }
+    }
+
+    this.executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "glitch-search");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+
+    if (blobs.isEmpty()) {
+      this.queue.add(END);
+      this.executor.shutdown();
+      return;
+    }
+
+    final AtomicInteger pending = new AtomicInteger(blobs.size());
+    for (final Map.Entry<ObjectId, List<String>> blob : blobs.entrySet()) {
+      this.executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          Throwable failure = null;
+          try {
+            ContentSearch.this.scan(blob.getKey(), blob.getValue());
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+          } catch (Throwable e) {
+            // errors too, e.g. StackOverflowError of a pattern, or the consumer would wait forever.
+            failure = e;
+          }
+          try {
+            if (failure != null) {
+              ContentSearch.this.queue.put(failure);
+            }
+            if (pending.decrementAndGet() == 0) {
+              ContentSearch.this.queue.put(END);
+            }
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+      });
+    }
+    this.executor.shutdown();
+  }
+
+  private void scan(ObjectId blobId, List<String> paths) throws IOException, InterruptedException {
+    // size from header first, as open loads blobs below streamFileThreshold entirely.
+    try (ObjectReader reader = this.repo.newObjectReader()) {
+      if (reader.getObjectSize(blobId, Constants.OBJ_BLOB) > MAX_BLOB_SIZE) {
+        return;
+      }
+    }
+    ObjectLoader loader = this.git.open(blobId);
+    if (loader.getSize() > MAX_BLOB_SIZE) {
+      // pointer of large object store.
+      return;
+    }
+
+    try (InputStream in = new BufferedInputStream(loader.openStream(), BINARY_PEEK)) {
+      in.mark(BINARY_PEEK);
+      byte[] head = new byte[BINARY_PEEK];
+      int n = 0;
+      for (int r; n < head.length && (r = in.read(head, n, head.length - n)) > 0;) {
+        n += r;
+      }
+      if (RawText.isBinary(head, n)) {
+        return;
+      }
+      in.reset();
+
+      BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+      Matcher matcher = this.pattern.matcher("");
+      int lineNumber = 0;
+      for (String line; (line = reader.readLine()) != null;) {
+        lineNumber++;
+        if (matcher.reset(line).find()) {
+          for (String path : paths) {
+            this.queue.put(new SearchMatch(path, lineNumber, line));
+          }
+        }
+      }
+    }
+  }
+
+  @Override
+  public boolean hasNext() {
+    if (this.next == null) {
+      try {
+        this.next = this.queue.take();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException("Interrupted while searching.", e);
+      }
+    }
+    Object failure = this.next;
+    if (failure instanceof IOException) {
+      this.close();
+      throw new IllegalStateException("Failed to search.", (IOException) failure);
+    }
+    if (failure instanceof RuntimeException) {
+      this.close();
+      throw (RuntimeException) failure;
+    }
+    if (failure instanceof Error) {
+      this.close();
+      throw (Error) failure;
+    }
+    if (failure instanceof Throwable) {
+      this.close();
+      throw new IllegalStateException("Failed to search.", (Throwable) failure);
+    }
+    return this.next != END;
+  }
+
+  @Override
+  public SearchMatch next() {
+    if (!this.hasNext()) {
+      throw new NoSuchElementException();
+    }
+    SearchMatch match = (SearchMatch) this.next;
+    this.next = null;
+    return match;
+  }
+
+  @Override
+  public void remove() {
+    throw new UnsupportedOperationException();
+  }
+
+  /**
+   * Stop workers.
+   */
+  @Override
+  public void close() {
+    this.executor.shutdownNow();
+    this.queue.clear();
+    this.next = END;
+  }
+
+}
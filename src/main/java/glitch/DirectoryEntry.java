@@ -0,0 +1,49 @@
+package glitch;
+
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+
+/**
+ * Direct child of a directory, returned by Commit.listDirectory.
+ * @author yohei224
+ */
+public class DirectoryEntry {
+
+  /** name of entry, without directory */
+  public final String name;
+
+  /** path of entry from root */
+  public final String path;
+
+  /** mode of entry */
+  public final FileMode mode;
+
+  /** id of blob, tree or submodule commit */
+  public final ObjectId objectId;
+
+  /** size of file in bytes, or -1 if not requested or not a file */
+  public final long size;
+
+  DirectoryEntry(String name, String path, FileMode mode, ObjectId objectId, long size) {
+    this.name = name;
+    this.path = path;
+    this.mode = mode;
+    this.objectId = objectId;
+    this.size = size;
+  }
+
+  /**
+   * Returns is this entry a directory.
+   * @return
+   */
+  public boolean isDirectory() {
+    return this.mode == FileMode.TREE;
+  }
+
+  @Override
+  public String toString() {
+    return this.path + (this.isDirectory() ? "/" : "") + " " + this.mode + " " + this.objectId.name()
+        + (this.size >= 0 ? " " + this.size : "");
+  }
+
+}
@@ -0,0 +1,321 @@
+package glitch;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.Repository;
+
+/**
+ * Imports a directory tree into a TreeBuilder, skipping files unchanged since last import.
+ * Like git's index, a stat cache maps (size, mtime, file key) of each path to its blob id. A file whose mtime is
+ * not older than the cache itself is hashed again, since it may have been modified within the same tick.
+ * Directories are walked and new files hashed in parallel, each read once and, if missing in repository, inserted from
+ * the bytes just hashed through an inserter of the walking thread.
+ * @author yohei224
+ */
+class DirectoryImporter {
+
+  private static final int CACHE_VERSION = 1;
+  private static final String CACHE_MAGIC = "glitch-statcache";
+  /** Size from which files are streamed into the inserter instead of read into memory */
+  private static final long STREAM_THRESHOLD = 50 * 1024 * 1024;
+
+  private final GitRepository git;
+  private final Repository repo;
+  private final Path root;
+  private final Path cacheFile;
+
+  /** path -> entry of last import */
+  private Map<String, StatEntry> cache = new HashMap<String, StatEntry>();
+  /** nanos when cache was saved */
+  private long cacheTime = Long.MIN_VALUE;
+  /** inserters of walking threads during import */
+  private Inserters inserters;
+
+  DirectoryImporter(GitRepository git, Repository repo, Path root, Path cacheFile) {
+    this.git = git;
+    this.repo = repo;
+    this.root = root;
+    this.cacheFile = cacheFile;
+  }
+
+  /**
+   * Walk directory and build tree of it.
+   * @return
+   * @throws IOException
+   */
+  TreeBuilder importTree() throws IOException {
+    this.loadCache();
+
+    ForkJoinPool pool = new ForkJoinPool();
+    List<StatEntry> entries;
+    this.inserters = new Inserters();
+    try {
+      entries = pool.invoke(new DirTask(this.root, ""));
+      // workers are done, so their inserters are flushed here.
+      this.inserters.flush();
+    } catch (UncheckedIO e) {
+      throw e.getCause();
+    } finally {
+      pool.shutdownNow();
+      this.inserters.close();
+      this.inserters = null;
+    }
+
+    TreeBuilder tree = new TreeBuilder(entries.size());
+    for (StatEntry entry : entries) {
+      tree.put(entry.path, entry.blobId, entry.mode);
+    }
+
+    this.cache = new HashMap<String, StatEntry>(entries.size() * 2);
+    for (StatEntry entry : entries) {
+      this.cache.put(entry.path, entry);
+    }
+    return tree;
+  }
+
+  /**
+   * Id of content, inserting it through inserter of current thread if missing in repository.
+   * @param content
+   * @param formatter
+   * @return
+   * @throws IOException
+   */
+  private ObjectId insertMissing(byte[] content, ObjectInserter formatter) throws IOException {
+    ObjectId blobId = formatter.insert(Constants.OBJ_BLOB, content);
+    if (this.repo.hasObject(blobId)) {
+      return blobId;
+    }
+    return this.inserters.get().insert(Constants.OBJ_BLOB, content);
+  }
+
+  private static byte[] symlinkTarget(Path file) throws IOException {
+    return Files.readSymbolicLink(file).toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  /** Directory walk, which forks per subdirectory. */
+  private class DirTask extends RecursiveTask<List<StatEntry>> {
+    private static final long serialVersionUID = 1L;
+
+    private final Path dir;
+    private final String prefix;
+
+    DirTask(Path dir, String prefix) {
+      this.dir = dir;
+      this.prefix = prefix;
+    }
+
+    @Override
+    protected List<StatEntry> compute() {
+      List<StatEntry> entries = new ArrayList<StatEntry>();
+      List<DirTask> subtasks = new ArrayList<DirTask>();
+      ObjectInserter formatter = DirectoryImporter.this.git.newHashingInserter();
+
+      try (DirectoryStream<Path> children = Files.newDirectoryStream(this.dir)) {
+        for (Path child : children) {
+          String name = child.getFileName().toString();
+          if (name.equals(Constants.DOT_GIT)
+              || (this.prefix.isEmpty() && DirectoryImporter.this.cacheFile != null && child
+                  .equals(DirectoryImporter.this.cacheFile))) {
+            continue;
+          }
+          BasicFileAttributes attrs = Files.readAttributes(child, BasicFileAttributes.class,
+              LinkOption.NOFOLLOW_LINKS);
+          String path = this.prefix + name;
+          if (attrs.isDirectory()) {
+            DirTask task = new DirTask(child, path + "/");
+            task.fork();
+            subtasks.add(task);
+          } else if (attrs.isRegularFile() || attrs.isSymbolicLink()) {
+            entries.add(DirectoryImporter.this.stat(child, path, attrs, formatter));
+          }
+        }
+      } catch (IOException e) {
+        throw new UncheckedIO(e);
+      }
+
+      for (DirTask task : subtasks) {
+        entries.addAll(task.join());
+      }
+      return entries;
+    }
+  }
+
+  /**
+   * Returns entry of file, hashing it unless stat cache says it is unchanged and its blob is in repository.
+   */
+  private StatEntry stat(Path file, String path, BasicFileAttributes attrs, ObjectInserter formatter)
+      throws IOException {
+    StatEntry entry = new StatEntry();
+    entry.path = path;
+    entry.size = attrs.size();
+    entry.mtime = attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+    entry.fileKey = attrs.fileKey() != null ? attrs.fileKey().toString() : "";
+    if (attrs.isSymbolicLink()) {
+      entry.mode = FileMode.SYMLINK;
+    } else {
+      entry.mode = Files.isExecutable(file) ? FileMode.EXECUTABLE_FILE : FileMode.REGULAR_FILE;
+    }
+
+    StatEntry cached = this.cache.get(path);
+    boolean hit = cached != null && cached.size == entry.size && cached.mtime == entry.mtime
+        && cached.fileKey.equals(entry.fileKey) && cached.mode == entry.mode && entry.mtime < this.cacheTime;
+    this.git.fireCacheAccessed("stat", hit);
+
+    if (hit && this.repo.hasObject(cached.blobId)) {
+      entry.blobId = cached.blobId;
+    } else if (entry.mode == FileMode.SYMLINK) {
+      entry.blobId = this.insertMissing(symlinkTarget(file), formatter);
+    } else if (entry.size < STREAM_THRESHOLD) {
+      byte[] content = Files.readAllBytes(file);
+      // file may have changed since stat.
+      entry.size = content.length;
+      entry.blobId = this.insertMissing(content, formatter);
+    } else {
+      // inserter skips objects it already has.
+      try (InputStream in = new BufferedInputStream(Files.newInputStream(file))) {
+        entry.blobId = this.inserters.get().insert(Constants.OBJ_BLOB, entry.size, in);
+      }
+    }
+    return entry;
+  }
+
+  private void loadCache() throws IOException {
+    if (this.cacheFile == null || !Files.isRegularFile(this.cacheFile)) {
+      return;
+    }
+    Map<String, StatEntry> cache = new HashMap<String, StatEntry>();
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(this.cacheFile)))) {
+      if (!CACHE_MAGIC.equals(in.readUTF()) || in.readInt() != CACHE_VERSION) {
+        return;
+      }
+      long cacheTime = in.readLong();
+      int count = in.readInt();
+      byte[] id = new byte[Constants.OBJECT_ID_LENGTH];
+      for (int i = 0; i < count; i++) {
+        StatEntry entry = new StatEntry();
+        entry.path = in.readUTF();
+        entry.size = in.readLong();
+        entry.mtime = in.readLong();
+        entry.fileKey = in.readUTF();
+        entry.mode = FileMode.fromBits(in.readInt());
+        in.readFully(id);
+        entry.blobId = ObjectId.fromRaw(id);
+        cache.put(entry.path, entry);
+      }
+      this.cache = cache;
+      this.cacheTime = cacheTime;
+    } catch (EOFException e) {
+      // truncated cache is just ignored.
+    }
+  }
+
+  /**
+   * Save entries of last import.
+   * @throws IOException
+   */
+  void saveCache() throws IOException {
+    if (this.cacheFile == null) {
+      return;
+    }
+    Files.createDirectories(this.cacheFile.toAbsolutePath().getParent());
+    Path tmp = this.cacheFile.resolveSibling(this.cacheFile.getFileName() + ".tmp");
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+      out.writeUTF(CACHE_MAGIC);
+      out.writeInt(CACHE_VERSION);
+      // a file modified after this time must not be trusted, compared in filesystem's clock.
+      out.writeLong(Files.getLastModifiedTime(tmp).to(TimeUnit.NANOSECONDS));
+      out.writeInt(this.cache.size());
+      byte[] id = new byte[Constants.OBJECT_ID_LENGTH];
+      for (StatEntry entry : this.cache.values()) {
+        out.writeUTF(entry.path);
+        out.writeLong(entry.size);
+        out.writeLong(entry.mtime);
+        out.writeUTF(entry.fileKey);
+        out.writeInt(entry.mode.getBits());
+        entry.blobId.copyRawTo(id, 0);
+        out.write(id);
+      }
+    }
+    Files.move(tmp, this.cacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /** Stat of a file and its blob */
+  private static class StatEntry {
+    String path;
+    long size;
+    long mtime;
+    String fileKey;
+    FileMode mode;
+    ObjectId blobId;
+  }
+
+  /** Inserter per thread, flushed and closed together. */
+  private class Inserters extends ThreadLocal<ObjectInserter> {
+    private final List<ObjectInserter> opened = new ArrayList<ObjectInserter>();
+
+    @Override
+    protected ObjectInserter initialValue() {
+      ObjectInserter inserter = DirectoryImporter.this.git.newObjectInserter();
+      synchronized (this.opened) {
+        this.opened.add(inserter);
+      }
+      return inserter;
+    }
+
+    void flush() throws IOException {
+      synchronized (this.opened) {
+        for (ObjectInserter inserter : this.opened) {
+          inserter.flush();
+        }
+      }
+    }
+
+    void close() {
+      synchronized (this.opened) {
+        for (ObjectInserter inserter : this.opened) {
+          inserter.close();
+        }
+        this.opened.clear();
+      }
+    }
+  }
+
+  /** Carries IOException out of ForkJoinTask. */
+  private static class UncheckedIO extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    UncheckedIO(IOException cause) {
+      super(cause);
+    }
+
+    @Override
+    public synchronized IOException getCause() {
+      return (IOException) super.getCause();
+    }
+  }
+
+}
@@ -0,0 +1,31 @@
+package glitch;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Page of direct children of a directory, returned by Commit.listDirectory.
+ * @author yohei224
+ */
+public class DirectoryListing {
+
+  /** entries in git tree order */
+  public final List<DirectoryEntry> entries;
+
+  /** cursor to pass for next page, or null if this is the last page */
+  public final String nextCursor;
+
+  DirectoryListing(List<DirectoryEntry> entries, String nextCursor) {
+    this.entries = Collections.unmodifiableList(entries);
+    this.nextCursor = nextCursor;
+  }
+
+  /**
+   * Returns is there a next page.
+   * @return
+   */
+  public boolean hasMore() {
+    return this.nextCursor != null;
+  }
+
+}
@@ -2,37 +2,66 @@ package glitch;
 
 import static org.eclipse.jgit.lib.RefDatabase.ALL;
 
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
 
 import org.eclipse.jgit.errors.AmbiguousObjectException;
 import org.eclipse.jgit.errors.CorruptObjectException;
 import org.eclipse.jgit.errors.IncorrectObjectTypeException;
 import org.eclipse.jgit.errors.MissingObjectException;
 import org.eclipse.jgit.errors.RevisionSyntaxException;
+import org.eclipse.jgit.internal.storage.dfs.DfsRepositoryDescription;
+import org.eclipse.jgit.internal.storage.dfs.InMemoryRepository;
+import org.eclipse.jgit.lib.BatchRefUpdate;
 import org.eclipse.jgit.lib.CommitBuilder;
 import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.NullProgressMonitor;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.ObjectInserter;
 import org.eclipse.jgit.lib.ObjectLoader;
 import org.eclipse.jgit.lib.ObjectLoader.SmallObject;
+import org.eclipse.jgit.lib.ObjectReader;
 import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.ProgressMonitor;
 import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefDatabase;
 import org.eclipse.jgit.lib.RefUpdate;
 import org.eclipse.jgit.lib.RefUpdate.Result;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.lib.RepositoryBuilder;
+import org.eclipse.jgit.lib.RepositoryCache.FileKey;
 import org.eclipse.jgit.lib.TagBuilder;
 import org.eclipse.jgit.lib.TreeFormatter;
 import org.eclipse.jgit.merge.MergeStrategy;
@@ -41,8 +70,18 @@ import org.eclipse.jgit.revwalk.RevCommit;
 import org.eclipse.jgit.revwalk.RevTree;
 import org.eclipse.jgit.revwalk.RevWalk;
 import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.eclipse.jgit.transport.FetchConnection;
+import org.eclipse.jgit.transport.PushResult;
+import org.eclipse.jgit.transport.ReceiveCommand;
+import org.eclipse.jgit.transport.RemoteRefUpdate;
+import org.eclipse.jgit.transport.Transport;
+import org.eclipse.jgit.transport.URIish;
+import org.eclipse.jgit.treewalk.CanonicalTreeParser;
 import org.eclipse.jgit.treewalk.TreeWalk;
 import org.eclipse.jgit.treewalk.filter.PathFilter;
+import org.eclipse.jgit.util.FS;
+
+import glitch.RepositoryListener.Operation;
 
 /**
  * Jgit Lowlevel-api repository Wrapper.
@@ -52,16 +91,62 @@ public class GitRepository {
 
   private static final String MASTER = "master";
 
+  /** Attempts to move a branch that others keep moving, or whose lock is left by a crashed process */
+  static final int MAX_UPDATE_ATTEMPTS = 32;
+
+  /** Upper bound of wait between those attempts, in milliseconds */
+  private static final int MAX_BACKOFF_MILLIS = 100;
+
   /** Repository */
   private Repository repo;
 
+  /** Listeners */
+  private final List<RepositoryListener> listeners = new CopyOnWriteArrayList<RepositoryListener>();
+
+  /** History index, if enabled */
+  private volatile HistoryIndex historyIndex;
+
+  /** Store of large blobs, if enabled */
+  private volatile LargeObjectStore largeObjectStore;
+
+  /** Deliverer of branch changes, while subscribed */
+  private BranchWatcher branchWatcher;
+
+  /** Retention policies by branch name */
+  private final Map<String, RetentionPolicy> retentionPolicies = new ConcurrentHashMap<String, RetentionPolicy>();
+
+  /** Held while compacting, so compactions run one at a time */
+  private final Object compactLock = new Object();
+
+  /** Cache of blame, created on first use */
+  private Blamer blamer;
+
+  /** Sizes of blobs listed by listDirectory, guarded by itself */
+  private final Map<ObjectId, Long> blobSizes = new LinkedHashMap<ObjectId, Long>(16, 0.75f, true) {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<ObjectId, Long> eldest) {
+      return this.size() > 16 * 1024;
+    }
+  };
+
   /**
    * Constructor
    * @param dir git workdirectory
    * @throws IOException
    */
   private GitRepository(File dir) throws IOException {
-    this.repo = new FileRepositoryBuilder().setMustExist(true).setGitDir(dir).build();
+    this(new FileRepositoryBuilder().setMustExist(true).setGitDir(dir).build());
+    this.largeObjectStore = LargeObjectStore.load(this.repo);
+  }
+
+  /**
+   * Constructor
+   * @param repo
+   */
+  private GitRepository(Repository repo) {
+    this.repo = repo;
   }
 
   /**
@@ -83,17 +168,518 @@ public class GitRepository {
     return new GitRepository(dir);
   }
 
+  /**
+   * Create repository held in memory only, discarded on close.
+   * @param name repository name
+   * @return
+   */
+  public static GitRepository getInMemoryInstance(String name) {
+    return new GitRepository(new InMemoryRepository(new DfsRepositoryDescription(name)));
+  }
+
+  /**
+   * Returns git directory, or null if held in memory.
+   * @return
+   */
   public File getDirectory() {
     return this.repo.getDirectory();
   }
 
+  /**
+   * Returns is this repository held in memory.
+   * @return
+   */
+  public boolean isInMemory() {
+    return this.repo instanceof InMemoryRepository;
+  }
+
   /**
    * Close
    */
   public void close() {
+    synchronized (this) {
+      if (this.branchWatcher != null) {
+        this.removeListener(this.branchWatcher);
+        this.branchWatcher.close();
+        this.branchWatcher = null;
+      }
+    }
+    if (this.historyIndex != null) {
+      try {
+        this.historyIndex.close();
+      } catch (IOException e) {
+        // nothing to do on close.
+      }
+    }
     this.repo.close();
   }
 
+  /**
+   * Enable history index stored in git directory, which is kept up to date on each commit and merge.
+   * @return
+   * @throws IOException
+   */
+  public HistoryIndex enableHistoryIndex() throws IOException {
+    if (this.getDirectory() == null) {
+      throw new IOException("History index of in-memory repository needs a directory.");
+    }
+    return this.enableHistoryIndex(new File(this.getDirectory(), "glitch/history"));
+  }
+
+  /**
+   * Enable history index stored in dir, which is kept up to date on each commit and merge.
+   * Commits reachable from refs but not indexed yet are indexed now.
+   * @param dir
+   * @return
+   * @throws IOException
+   */
+  public synchronized HistoryIndex enableHistoryIndex(File dir) throws IOException {
+    if (this.historyIndex == null) {
+      this.historyIndex = HistoryIndex.open(dir);
+    }
+    this.historyIndex.update(this.repo);
+    return this.historyIndex;
+  }
+
+  /**
+   * Returns history index, or null if not enabled.
+   * @return
+   */
+  public HistoryIndex historyIndex() {
+    return this.historyIndex;
+  }
+
+  /**
+   * Index commits reachable from refs updated by others, if history index is enabled.
+   * @return number of commits added
+   * @throws IOException
+   */
+  public int updateHistoryIndex() throws IOException {
+    HistoryIndex index = this.historyIndex;
+    return index != null ? index.update(this.repo) : 0;
+  }
+
+  private void indexCommit(ObjectId commitId) throws IOException {
+    HistoryIndex index = this.historyIndex;
+    if (index != null) {
+      index.update(this.repo, Collections.singleton(commitId));
+    }
+  }
+
+  /**
+   * Enable store of large blobs in lfs/objects of git directory.
+   * Blobs committed from now on whose size is at or above threshold are kept out of the object database.
+   * @param threshold size in bytes
+   * @return
+   * @throws IOException
+   */
+  public LargeObjectStore enableLargeObjectStore(long threshold) throws IOException {
+    if (this.getDirectory() == null) {
+      throw new IOException("Large object store of in-memory repository needs a directory.");
+    }
+    return this.enableLargeObjectStore(new File(this.getDirectory(), "lfs/objects"), threshold);
+  }
+
+  /**
+   * Enable store of large blobs in dir.
+   * Blobs committed from now on whose size is at or above threshold are kept out of the object database.
+   * The store is recorded in repository config, so that instances opened later enable it too.
+   * @param dir
+   * @param threshold size in bytes
+   * @return
+   * @throws IOException
+   */
+  public LargeObjectStore enableLargeObjectStore(File dir, long threshold) throws IOException {
+    LargeObjectStore store = LargeObjectStore.open(dir, threshold);
+    store.save(this.repo);
+    this.largeObjectStore = store;
+    return store;
+  }
+
+  /**
+   * Copy contents of large object store into store of target, whose objects are about to refer to them.
+   * @param target
+   * @throws IOException if target has no store while this has
+   */
+  private void replicateLargeObjects(GitRepository target) throws IOException {
+    LargeObjectStore store = this.largeObjectStore;
+    if (store == null) {
+      return;
+    }
+    if (target.largeObjectStore == null) {
+      throw new IOException("Large object store is not enabled in target, its pointers would not resolve.");
+    }
+    store.copyTo(target.largeObjectStore);
+  }
+
+  /**
+   * Copy contents of large object store into store of repository at uri, which must be on local file system.
+   * @param uri
+   * @throws IOException if remote has no store while this has, or is not local
+   */
+  private void replicateLargeObjects(URIish uri) throws IOException {
+    if (this.largeObjectStore == null) {
+      return;
+    }
+    if (uri.getHost() != null || (uri.getScheme() != null && !"file".equals(uri.getScheme()))) {
+      throw new IOException("Large objects cannot be replicated to " + uri);
+    }
+    GitRepository remote = new GitRepository(new File(uri.getPath()));
+    try {
+      this.replicateLargeObjects(remote);
+    } finally {
+      remote.close();
+    }
+  }
+
+  /**
+   * Returns store of large blobs, or null if not enabled.
+   * @return
+   */
+  public LargeObjectStore largeObjectStore() {
+    return this.largeObjectStore;
+  }
+
+  /**
+   * Set retention policy of branch, applied by compact.
+   * @param branchName
+   * @param policy or null to keep whole history
+   * @return
+   */
+  public GitRepository setRetentionPolicy(String branchName, RetentionPolicy policy) {
+    if (policy != null) {
+      this.retentionPolicies.put(branchName, policy);
+    } else {
+      this.retentionPolicies.remove(branchName);
+    }
+    return this;
+  }
+
+  /**
+   * Returns retention policy of branch, or null if whole history is kept.
+   * @param branchName
+   * @return
+   */
+  public RetentionPolicy retentionPolicy(String branchName) {
+    return this.retentionPolicies.get(branchName);
+  }
+
+  /**
+   * Compact history of branches having a retention policy, and prune unreachable objects older than an hour.
+   * @return number of commits dropped
+   * @throws IOException
+   */
+  public int compact() throws IOException {
+    return this.compact(1, TimeUnit.HOURS);
+  }
+
+  /**
+   * Compact history of branches having a retention policy, and prune unreachable objects.
+   * Each dropped parent of a kept commit is squashed into a root commit with its tree, on which kept commits are
+   * rewritten with the same trees and metadata. Tags of kept commits are moved to the rewritten ones, and tags of
+   * dropped commits are deleted once no branch reaches them, at this compaction or a later one; other tags are left
+   * alone. Branches are moved by compare-and-swap, so readers and writers go on meanwhile, and objects are pruned only
+   * after grace, so readers of dropped commits do not fail. The history index, if enabled, is rebuilt from the refs, so
+   * dropped commits leave it and positions given before are no longer valid. Cached blame of commits no ref reaches is
+   * deleted.
+   * @param pruneGrace age from which unreachable objects are deleted
+   * @param unit
+   * @return number of commits dropped
+   * @throws IOException
+   */
+  public int compact(long pruneGrace, TimeUnit unit) throws IOException {
+    long start = System.nanoTime();
+    synchronized (this.compactLock) {
+      try {
+        Compactor compactor = new Compactor(this, this.repo);
+        long now = System.currentTimeMillis();
+        int dropped = 0;
+        for (Entry<String, RetentionPolicy> entry : new TreeMap<String, RetentionPolicy>(this.retentionPolicies)
+            .entrySet()) {
+          dropped += compactor.compact(entry.getKey(), entry.getValue(), now);
+        }
+        int deletedTags = compactor.deleteDroppedTags();
+        if (dropped > 0 || deletedTags > 0) {
+          HistoryIndex index = this.historyIndex;
+          if (index != null) {
+            index.rebuild(this.repo);
+          }
+          this.blamer().prune();
+          compactor.prune(unit.toMillis(pruneGrace));
+        }
+        return dropped;
+      } finally {
+        this.fireOperation(Operation.COMPACT, start);
+      }
+    }
+  }
+
+  /**
+   * Add listener to be notified of operations on this repository.
+   * @param listener
+   * @return
+   */
+  public GitRepository addListener(RepositoryListener listener) {
+    this.listeners.add(listener);
+    return this;
+  }
+
+  /**
+   * Remove listener.
+   * @param listener
+   */
+  public void removeListener(RepositoryListener listener) {
+    this.listeners.remove(listener);
+  }
+
+  /**
+   * Verify objects reachable from all refs, reporting missing and corrupt ones.
+   * @return
+   * @throws IOException
+   */
+  public VerifyResult verify() throws IOException {
+    return this.verify(NullProgressMonitor.INSTANCE);
+  }
+
+  /**
+   * Verify objects reachable from all refs, reporting missing and corrupt ones.
+   * Each object is read, hashed again and checked for format, trees and blobs in parallel on all cores.
+   * Contents of large object store are checked too, if enabled.
+   * @param monitor progress, counted in objects
+   * @return
+   * @throws IOException
+   */
+  public VerifyResult verify(ProgressMonitor monitor) throws IOException {
+    return new Verifier(this.repo, this.largeObjectStore).run(monitor);
+  }
+
+  /**
+   * Subscribe to changes of branches, made through this instance or by others on the same git directory.
+   * Changes of a branch within a short delay are delivered as one event.
+   * Changes by others are found by watching the git directory, so they are delivered for in-memory repositories only if
+   * made through this instance.
+   * @param listener
+   * @return subscription, to be closed to unsubscribe
+   * @throws IOException
+   */
+  public synchronized Closeable subscribe(final BranchListener listener) throws IOException {
+    if (this.branchWatcher == null) {
+      this.branchWatcher = new BranchWatcher(this.repo);
+      this.addListener(this.branchWatcher);
+    }
+    final BranchWatcher watcher = this.branchWatcher;
+    watcher.add(listener);
+    return new Closeable() {
+      @Override
+      public void close() {
+        GitRepository.this.unsubscribe(watcher, listener);
+      }
+    };
+  }
+
+  /**
+   * Returns size of blob, as open would load it, without reading its content.
+   * @param reader
+   * @param blobId
+   * @return
+   * @throws IOException
+   */
+  private long blobSize(ObjectReader reader, ObjectId blobId) throws IOException {
+    Long cached;
+    synchronized (this.blobSizes) {
+      cached = this.blobSizes.get(blobId);
+    }
+    this.fireCacheAccessed("size", cached != null);
+    if (cached != null) {
+      return cached.longValue();
+    }
+    long size = reader.getObjectSize(blobId, Constants.OBJ_BLOB);
+    LargeObjectStore store = this.largeObjectStore;
+    if (store != null && size < LargeObjectStore.MIN_THRESHOLD) {
+      size = store.resolve(blobId, reader.open(blobId, Constants.OBJ_BLOB)).getSize();
+    }
+    synchronized (this.blobSizes) {
+      this.blobSizes.put(blobId.copy(), Long.valueOf(size));
+    }
+    return size;
+  }
+
+  /**
+   * Wait before next attempt to update a ref, randomly and exponentially longer up to MAX_BACKOFF_MILLIS.
+   * @param attempt number of failed attempts
+   * @throws InterruptedIOException
+   */
+  static void backoff(int attempt) throws InterruptedIOException {
+    int bound = Math.min(MAX_BACKOFF_MILLIS, 1 << Math.min(attempt, 10));
+    try {
+      Thread.sleep(ThreadLocalRandom.current().nextInt(bound) + 1);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException();
+    }
+  }
+
+  private synchronized Blamer blamer() {
+    if (this.blamer == null) {
+      File dir = this.getDirectory();
+      this.blamer = new Blamer(this, this.repo, dir != null ? new File(dir, "glitch/blame").toPath() : null);
+    }
+    return this.blamer;
+  }
+
+  private synchronized void unsubscribe(BranchWatcher watcher, BranchListener listener) {
+    if (watcher.remove(listener) && watcher == this.branchWatcher) {
+      this.removeListener(watcher);
+      watcher.close();
+      this.branchWatcher = null;
+    }
+  }
+
+  void fireOperation(Operation operation, long startNanos) {
+    if (this.listeners.isEmpty()) {
+      return;
+    }
+    long nanos = System.nanoTime() - startNanos;
+    for (RepositoryListener listener : this.listeners) {
+      listener.operationCompleted(operation, nanos);
+    }
+  }
+
+  void fireObjectsInserted(int count, long bytes) {
+    for (RepositoryListener listener : this.listeners) {
+      listener.objectsInserted(count, bytes);
+    }
+  }
+
+  void fireObjectsRead(int count, long bytes) {
+    for (RepositoryListener listener : this.listeners) {
+      listener.objectsRead(count, bytes);
+    }
+  }
+
+  void fireRefUpdated(String refName, ObjectId oldId, ObjectId newId, Result result) {
+    for (RepositoryListener listener : this.listeners) {
+      listener.refUpdated(refName, oldId, newId, result);
+    }
+  }
+
+  void fireCacheAccessed(String cache, boolean hit) {
+    for (RepositoryListener listener : this.listeners) {
+      listener.cacheAccessed(cache, hit);
+    }
+  }
+
+  /**
+   * Open object for reading, resolving pointers of large object store and reporting to listeners.
+   * @param objectId
+   * @return
+   * @throws MissingObjectException
+   * @throws IOException
+   */
+  ObjectLoader open(ObjectId objectId) throws MissingObjectException, IOException {
+    ObjectLoader loader = this.repo.open(objectId);
+    LargeObjectStore store = this.largeObjectStore;
+    if (store != null) {
+      loader = store.resolve(objectId, loader);
+    }
+    if (!this.listeners.isEmpty()) {
+      this.fireObjectsRead(1, loader.getSize());
+    }
+    return loader;
+  }
+
+  /**
+   * Returns new inserter which stores large blobs out of line and reports inserted objects to listeners on flush.
+   * @return
+   */
+  ObjectInserter newObjectInserter() {
+    ObjectInserter inserter = new CountingInserter(this.repo.newObjectInserter());
+    LargeObjectStore store = this.largeObjectStore;
+    return store != null ? store.newInserter(inserter, true) : inserter;
+  }
+
+  /**
+   * Returns new inserter which only computes ids, writing nothing, as newObjectInserter would return.
+   * @return
+   */
+  ObjectInserter newHashingInserter() {
+    LargeObjectStore store = this.largeObjectStore;
+    return store != null ? store.newInserter(new HashingInserter(), false) : new HashingInserter();
+  }
+
+  /**
+   * Write or clear MERGE_MSG and MERGE_HEAD, which only exist in git directory.
+   * @param message
+   * @param heads
+   * @throws IOException
+   */
+  private void writeMergeState(String message, List<ObjectId> heads) throws IOException {
+    if (this.repo.getDirectory() == null) {
+      return;
+    }
+    this.repo.writeMergeCommitMsg(message);
+    this.repo.writeMergeHeads(heads);
+  }
+
+  /** ObjectInserter which only computes ids, writing nothing. */
+  private static class HashingInserter extends ObjectInserter.Formatter {
+
+    @Override
+    public ObjectId insert(int type, byte[] data, int off, int len) {
+      return this.idFor(type, data, off, len);
+    }
+
+    @Override
+    public ObjectId insert(int type, long length, InputStream in) throws IOException {
+      return this.idFor(type, length, in);
+    }
+  }
+
+  /** ObjectInserter counting objects and bytes until flush. */
+  private class CountingInserter extends ObjectInserter.Filter {
+    private final ObjectInserter delegate;
+    private int count;
+    private long bytes;
+
+    CountingInserter(ObjectInserter delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override
+    protected ObjectInserter delegate() {
+      return this.delegate;
+    }
+
+    @Override
+    public ObjectId insert(int type, byte[] data) throws IOException {
+      return this.insert(type, data, 0, data.length);
+    }
+
+    @Override
+    public ObjectId insert(int type, byte[] data, int off, int len) throws IOException {
+      this.count++;
+      this.bytes += len;
+      return super.insert(type, data, off, len);
+    }
+
+    @Override
+    public ObjectId insert(int type, long length, InputStream in) throws IOException {
+      this.count++;
+      this.bytes += length;
+      return super.insert(type, length, in);
+    }
+
+    @Override
+    public void flush() throws IOException {
+      super.flush();
+      if (this.count > 0) {
+        GitRepository.this.fireObjectsInserted(this.count, this.bytes);
+      }
+      this.count = 0;
+      this.bytes = 0;
+    }
+  }
+
   /**
    * Initialize master branch with a file
    * @param filename
@@ -151,28 +737,327 @@ public class GitRepository {
   }
 
   /**
-   * List all branches of this repo.
-   * @return all branches.
+   * Format entries recursively, in git tree order.
+   * @param dir dir instance
+   * @param inserter ObjectInserter
+   * @return treeFormatter contains all entries.
+   * @throws IOException
+   * @throws IllegalArgumentException if a name is both a file and a directory
+   */
+  private TreeFormatter formatDir(Dir dir, ObjectInserter inserter) throws IOException {
+    return this.formatDir(dir, inserter, false);
+  }
+
+  /**
+   * Format entries recursively.
+   * @param dir dir instance
+   * @param inserter ObjectInserter
+   * @param legacyOrder files before directories as written before, instead of git tree order
+   * @return treeFormatter contains all entries.
+   * @throws IOException
+   * @throws IllegalArgumentException if a name is both a file and a directory
+   */
+  private TreeFormatter formatDir(Dir dir, ObjectInserter inserter, boolean legacyOrder) throws IOException {
+    // git tree order, in which names of directories sort as if followed by '/'.
+    Map<byte[], String> names = new TreeMap<byte[], String>(TreeBuilder.PATH_ORDER);
+    for (String name : dir.files.keySet()) {
+      names.put(Constants.encode(name), name);
+    }
+    for (String name : dir.dirs.keySet()) {
+      if (dir.files.containsKey(name)) {
+        throw new IllegalArgumentException(name + " is both a file and a directory.");
+      }
+      names.put(Constants.encode(name + "/"), name);
+    }
+    Collection<String> order = names.values();
+    if (legacyOrder) {
+      order = new ArrayList<String>(dir.files.keySet());
+      order.addAll(dir.dirs.keySet());
+    }
+
+    TreeFormatter formatter = new TreeFormatter();
+    for (String name : order) {
+      if (dir.dirs.containsKey(name)) {
+        TreeFormatter dirFormatter = this.formatDir(dir.dirs.get(name), inserter, legacyOrder);
+        ObjectId objId = inserter.insert(dirFormatter);
+        formatter.append(name, FileMode.TREE, objId);
+      } else {
+        Blob blob = dir.files.get(name);
+        ObjectId objId = inserter.insert(Constants.OBJ_BLOB, blob.length(), blob.inputStream());
+        formatter.append(name, FileMode.REGULAR_FILE, objId);
+      }
+    }
+
+    return formatter;
+  }
+
+  /**
+   * Returns whether git tree order of dir differs from the order written before, all files before all directories.
+   * @param dir
+   * @return
+   */
+  private static boolean isReordered(Dir dir) {
+    byte[] lastFile = null;
+    for (String name : dir.files.keySet()) {
+      byte[] key = Constants.encode(name);
+      if (lastFile == null || TreeBuilder.PATH_ORDER.compare(key, lastFile) > 0) {
+        lastFile = key;
+      }
+    }
+    for (Map.Entry<String, Dir> entry : dir.dirs.entrySet()) {
+      if (lastFile != null && TreeBuilder.PATH_ORDER.compare(Constants.encode(entry.getKey() + "/"), lastFile) < 0) {
+        return true;
+      }
+      if (isReordered(entry.getValue())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Compute id of root tree of dir, without writing any object.
+   * @param dir
+   * @return
+   * @throws IOException
+   */
+  public ObjectId treeId(Dir dir) throws IOException {
+    try (ObjectInserter formatter = this.newHashingInserter()) {
+      return formatter.insert(this.formatDir(dir, formatter));
+    }
+  }
+
+  /**
+   * Compute id of root tree of dir in the order written before, files before directories, without writing any object.
+   * @param dir
+   * @return
+   * @throws IOException
+   */
+  private ObjectId legacyTreeId(Dir dir) throws IOException {
+    try (ObjectInserter formatter = this.newHashingInserter()) {
+      return formatter.insert(this.formatDir(dir, formatter, true));
+    }
+  }
+
+  /**
+   * Compute id of root tree built by paths, without writing any object.
+   * @param tree
+   * @return
+   * @throws IOException
+   */
+  public ObjectId treeId(TreeBuilder tree) throws IOException {
+    try (ObjectInserter formatter = this.newHashingInserter()) {
+      return tree.writeTree(formatter);
+    }
+  }
+
+  /**
+   * List all branches of this repo.
+   * @return all branches.
+   * @throws IOException
+   */
+  public List<Branch> listBranches() throws IOException {
+    Collection<Ref> values = this.repo.getRefDatabase().getRefs(Constants.R_HEADS).values();
+
+    List<Branch> list = new ArrayList<Branch>();
+    for (Ref ref : values) {
+      list.add(this.branch(ref.getName().substring(Constants.R_HEADS.length())));
+    }
+
+    return list;
+  }
+
+  /**
+   * get branch instance by name.
+   * @param branchName
+   * @return
+   */
+  public Branch branch(String branchName) {
+    return new Branch(branchName);
+  }
+
+  /**
+   * Replicate branches and all tags into mirror repository in process.
+   * Objects mirror lacks are sent as one thin pack, and then branches and tags of mirror are set to those of this
+   * repository, atomically if ref database of mirror supports it. Branches given but missing here are deleted in
+   * mirror, and so are tags missing here. If large object store is enabled, its contents are copied into store of
+   * mirror, which must be enabled too.
+   * @param mirror
+   * @param branchNames branches to replicate, all branches if empty
+   * @return number of refs updated in mirror
+   * @throws IOException
+   */
+  public int replicateTo(GitRepository mirror, String... branchNames) throws IOException {
+    Collection<Ref> mirrorTags = mirror.repo.getRefDatabase().getRefs(Constants.R_TAGS).values();
+    Map<String, ObjectId> refs = this.replicatedRefs(mirrorTags, branchNames);
+    this.replicateLargeObjects(mirror);
+
+    List<ObjectId> wants = new ArrayList<ObjectId>();
+    for (ObjectId id : refs.values()) {
+      if (!id.equals(ObjectId.zeroId())) {
+        wants.add(id);
+      }
+    }
+    long[] sent = PackTransfer.copy(this.repo, mirror.repo, wants);
+    if (sent[0] > 0) {
+      mirror.fireObjectsInserted((int) sent[0], sent[1]);
+    }
+
+    RefDatabase refDatabase = mirror.repo.getRefDatabase();
+    BatchRefUpdate batch = refDatabase.newBatchUpdate();
+    batch.setAllowNonFastForwards(true);
+    batch.setAtomic(refDatabase.performsAtomicTransactions());
+    batch.setRefLogMessage("replicated", false);
+    for (Entry<String, ObjectId> entry : refs.entrySet()) {
+      Ref ref = refDatabase.exactRef(entry.getKey());
+      ObjectId oldId = ref != null ? ref.getObjectId() : ObjectId.zeroId();
+      if (!oldId.equals(entry.getValue())) {
+        batch.addCommand(new ReceiveCommand(oldId, entry.getValue(), entry.getKey()));
+      }
+    }
+    if (batch.getCommands().isEmpty()) {
+      return 0;
+    }
+
+    try (RevWalk walk = new RevWalk(mirror.repo)) {
+      batch.execute(walk, NullProgressMonitor.INSTANCE);
+    }
+    for (ReceiveCommand command : batch.getCommands()) {
+      Result result = command.getResult() == ReceiveCommand.Result.OK ? toResult(command.getType()) : Result.REJECTED;
+      mirror.fireRefUpdated(command.getRefName(), command.getOldId(), command.getNewId(), result);
+    }
+    for (ReceiveCommand command : batch.getCommands()) {
+      if (command.getResult() != ReceiveCommand.Result.OK) {
+        throw new IOException("Failed to replicate " + command.getRefName() + ": " + command.getResult()
+            + (command.getMessage() != null ? " " + command.getMessage() : ""));
+      }
+      if (command.getType() != ReceiveCommand.Type.DELETE && command.getRefName().startsWith(Constants.R_HEADS)) {
+        mirror.indexCommit(command.getNewId());
+      }
+    }
+    return batch.getCommands().size();
+  }
+
+  /**
+   * Replicate branches and all tags into remote repository, such as a bare repository on local file path, by push.
+   * Objects are sent as one thin pack, and refs are updated by force, atomically if remote supports it.
+   * Branches given but missing here are deleted in remote, and so are tags missing here. If large object store is
+   * enabled, remote must be on local file system with its store enabled, and store contents are copied there.
+   * @param uri
+   * @param branchNames branches to replicate, all branches if empty
+   * @return number of refs updated in remote
+   * @throws IOException
+   */
+  public int replicateTo(URIish uri, String... branchNames) throws IOException {
+    Map<String, ObjectId> refs = this.replicatedRefs(this.remoteTags(uri), branchNames);
+    this.replicateLargeObjects(uri);
+    List<RemoteRefUpdate> updates = new ArrayList<RemoteRefUpdate>();
+    for (Entry<String, ObjectId> entry : refs.entrySet()) {
+      String source = entry.getValue().equals(ObjectId.zeroId()) ? null : entry.getValue().name();
+      updates.add(new RemoteRefUpdate(this.repo, source, entry.getKey(), true, null, null));
+    }
+
+    PushResult pushed = this.push(uri, updates, acceptsAtomicPush(uri));
+
+    int updated = 0;
+    for (RemoteRefUpdate update : pushed.getRemoteUpdates()) {
+      switch (update.getStatus()) {
+      case OK:
+        updated++;
+        break;
+      case UP_TO_DATE:
+      case NON_EXISTING:
+        break;
+      default:
+        throw new IOException("Failed to replicate " + update.getRemoteName() + ": " + update.getStatus()
+            + (update.getMessage() != null ? " " + update.getMessage() : ""));
+      }
+    }
+    return updated;
+  }
+
+  /**
+   * Whether receive-pack at uri takes atomic pushes. Repositories on local file system advertise it if their ref
+   * database performs atomic transactions, as checked here; servers are expected to, as git does since 2.4.
+   * @param uri
+   * @return
    * @throws IOException
    */
-  public List<Branch> listBranches() throws IOException {
-    Collection<Ref> values = this.repo.getRefDatabase().getRefs(Constants.R_HEADS).values();
+  private static boolean acceptsAtomicPush(URIish uri) throws IOException {
+    if (uri.getHost() != null || (uri.getScheme() != null && !"file".equals(uri.getScheme()))) {
+      return true;
+    }
+    File gitDir = FileKey.resolve(new File(uri.getPath()), FS.DETECTED);
+    if (gitDir == null) {
+      // push fails for missing repository.
+      return false;
+    }
+    try (Repository target = new FileRepositoryBuilder().setGitDir(gitDir).build()) {
+      return target.getRefDatabase().performsAtomicTransactions();
+    }
+  }
 
-    List<Branch> list = new ArrayList<Branch>();
-    for (Ref ref : values) {
-      list.add(this.branch(ref.getName().substring(Constants.R_HEADS.length())));
+  private PushResult push(URIish uri, List<RemoteRefUpdate> updates, boolean atomic) throws IOException {
+    List<RemoteRefUpdate> copies = new ArrayList<RemoteRefUpdate>();
+    for (RemoteRefUpdate update : updates) {
+      copies.add(new RemoteRefUpdate(update, null));
+    }
+    try (Transport transport = Transport.open(this.repo, uri)) {
+      transport.setPushThin(true);
+      transport.setPushAtomic(atomic);
+      return transport.push(NullProgressMonitor.INSTANCE, copies);
     }
+  }
 
-    return list;
+  private Collection<Ref> remoteTags(URIish uri) throws IOException {
+    List<Ref> tags = new ArrayList<Ref>();
+    try (Transport transport = Transport.open(this.repo, uri); FetchConnection connection = transport.openFetch()) {
+      for (Ref ref : connection.getRefs()) {
+        if (ref.getName().startsWith(Constants.R_TAGS)) {
+          tags.add(ref);
+        }
+      }
+    }
+    return tags;
   }
 
   /**
-   * get branch instance by name.
-   * @param branchName
+   * Returns heads of branches and all tags to replicate by ref name, zeroId for missing ones.
+   * @param targetTags tags of replica, deleted there if missing here
+   * @param branchNames all branches if empty
    * @return
+   * @throws IOException
    */
-  public Branch branch(String branchName) {
-    return new Branch(branchName);
+  private Map<String, ObjectId> replicatedRefs(Collection<Ref> targetTags, String... branchNames)
+      throws IOException {
+    Map<String, ObjectId> refs = new TreeMap<String, ObjectId>();
+    if (branchNames.length == 0) {
+      for (Ref ref : this.repo.getRefDatabase().getRefs(Constants.R_HEADS).values()) {
+        refs.put(ref.getName(), ref.getObjectId());
+      }
+    }
+    for (String branchName : branchNames) {
+      Ref ref = this.repo.exactRef(Constants.R_HEADS + branchName);
+      refs.put(Constants.R_HEADS + branchName, ref != null ? ref.getObjectId() : ObjectId.zeroId());
+    }
+    for (Ref ref : targetTags) {
+      refs.put(ref.getName(), ObjectId.zeroId());
+    }
+    for (Ref ref : this.repo.getRefDatabase().getRefs(Constants.R_TAGS).values()) {
+      refs.put(ref.getName(), ref.getObjectId());
+    }
+    return refs;
+  }
+
+  private static Result toResult(ReceiveCommand.Type type) {
+    switch (type) {
+    case CREATE:
+      return Result.NEW;
+    case UPDATE:
+      return Result.FAST_FORWARD;
+    default:
+      return Result.FORCED;
+    }
   }
 
   /** Branch */
@@ -239,6 +1124,7 @@ public class GitRepository {
      * @throws IOException
      */
     public List<Commit> listCommits() throws MissingObjectException, IncorrectObjectTypeException, IOException {
+      long start = System.nanoTime();
       Ref head = this.findHeadRef();
 
       try (RevWalk walk = new RevWalk(this.repo)) {
@@ -253,32 +1139,22 @@ public class GitRepository {
         walk.dispose();
 
         return revs;
+      } finally {
+        GitRepository.this.fireOperation(Operation.LIST_COMMITS, start);
       }
     }
 
     /**
-     * Format entries recursively.
-     * @param dir dir instance
-     * @param inserter ObjectInserter
-     * @return treeFormatter contains all entries.
+     * Execute commit to this branch.
+     * @param add
+     * @param message
+     * @param ident
+     * @return
      * @throws IOException
+     * @throws IllegalArgumentException if a name in add is both a file and a directory
      */
-    private TreeFormatter formatDir(Dir dir, ObjectInserter inserter) throws IOException {
-      TreeFormatter formatter = new TreeFormatter();
-
-      for (Entry<String, Blob> entry : dir.files.entrySet()) {
-        Blob blob = entry.getValue();
-        ObjectId objId = inserter.insert(Constants.OBJ_BLOB, blob.length(), blob.inputStream());
-        formatter.append(entry.getKey(), FileMode.REGULAR_FILE, objId);
-      }
-
-      for (Map.Entry<String, Dir> entry : dir.dirs.entrySet()) {
-        TreeFormatter dirFormatter = formatDir(entry.getValue(), inserter);
-        ObjectId objId = inserter.insert(dirFormatter);
-        formatter.append(entry.getKey(), FileMode.TREE, objId);
-      }
-
-      return formatter;
+    public Commit commit(Dir add, String message, Ident ident) throws IOException {
+      return commit(add, new Dir(), message, ident);
     }
 
     /**
@@ -286,11 +1162,24 @@ public class GitRepository {
      * @param add
      * @param message
      * @param ident
+     * @param skipIfUnchanged if true and tree equals to tree of head, returns head without writing anything.
+     * Tree is hashed once more to check it, in exchange for not writing unchanged trees.
      * @return
      * @throws IOException
+     * @throws IllegalArgumentException if a name in add is both a file and a directory
      */
-    public Commit commit(Dir add, String message, Ident ident) throws IOException {
-      return commit(add, new Dir(), message, ident);
+    public Commit commit(Dir add, String message, Ident ident, boolean skipIfUnchanged) throws IOException {
+      if (skipIfUnchanged) {
+        Commit head = this.headIfTreeEquals(GitRepository.this.treeId(add));
+        if (head == null && isReordered(add)) {
+          // head may be written before trees were in git order, with the same content.
+          head = this.headIfTreeEquals(GitRepository.this.legacyTreeId(add));
+        }
+        if (head != null) {
+          return head;
+        }
+      }
+      return this.commit(add, new Dir(), message, ident, skipIfUnchanged);
     }
 
     /**
@@ -303,15 +1192,135 @@ public class GitRepository {
      * @throws IOException
      */
     public Commit commit(Dir add, Dir rm, String message, Ident ident) throws IOException {
-      PersonIdent personIdent = ident.toPersonIdent();
+      return this.commit(add, rm, message, ident, false);
+    }
+
+    private Commit commit(Dir add, Dir rm, String message, Ident ident, boolean skipIfUnchanged) throws IOException {
+      long start = System.nanoTime();
 
-      try (ObjectInserter inserter = this.repo.newObjectInserter()) {
-        TreeFormatter formatter = formatDir(add, inserter);
+      try (ObjectInserter inserter = GitRepository.this.newObjectInserter()) {
+        long formatStart = System.nanoTime();
+        TreeFormatter formatter = GitRepository.this.formatDir(add, inserter);
         ObjectId treeId = inserter.insert(formatter);
+        GitRepository.this.fireOperation(Operation.FORMAT_DIR, formatStart);
+
+        return this.commitTree(treeId, inserter, message, ident, skipIfUnchanged);
+      } finally {
+        GitRepository.this.fireOperation(Operation.COMMIT, start);
+      }
+    }
+
+    /**
+     * Execute commit of whole tree built by paths to this branch.
+     * @param tree
+     * @param message commit message
+     * @param ident
+     * @return
+     * @throws IOException
+     */
+    public Commit commit(TreeBuilder tree, String message, Ident ident) throws IOException {
+      return this.commit(tree, message, ident, false);
+    }
+
+    /**
+     * Execute commit of whole tree built by paths to this branch.
+     * @param tree
+     * @param message commit message
+     * @param ident
+     * @param skipIfUnchanged if true and tree equals to tree of head, returns head without writing anything.
+     * @return
+     * @throws IOException
+     */
+    public Commit commit(TreeBuilder tree, String message, Ident ident, boolean skipIfUnchanged) throws IOException {
+      if (skipIfUnchanged) {
+        Commit head = this.headIfTreeEquals(GitRepository.this.treeId(tree));
+        if (head != null) {
+          return head;
+        }
+      }
+      long start = System.nanoTime();
+
+      try (ObjectInserter inserter = GitRepository.this.newObjectInserter()) {
+        long formatStart = System.nanoTime();
+        ObjectId treeId = tree.writeTree(inserter);
+        GitRepository.this.fireOperation(Operation.FORMAT_DIR, formatStart);
+
+        return this.commitTree(treeId, inserter, message, ident, skipIfUnchanged);
+      } finally {
+        GitRepository.this.fireOperation(Operation.COMMIT, start);
+      }
+    }
+
+    /**
+     * Commit whole content of directory to this branch.
+     * Files unchanged since last import are not read again, by stat cache kept in git directory.
+     * @param dir
+     * @param message
+     * @param ident
+     * @return
+     * @throws IOException
+     */
+    public Commit commitFromDirectory(Path dir, String message, Ident ident) throws IOException {
+      File gitDir = GitRepository.this.getDirectory();
+      Path statCache = gitDir != null ? new File(gitDir, "glitch/statcache/" + this.name).toPath() : null;
+      return this.commitFromDirectory(dir, statCache, message, ident, false);
+    }
+
+    /**
+     * Commit whole content of directory to this branch.
+     * Directory is walked and changed files are hashed in parallel, and only new blobs are written.
+     * @param dir
+     * @param statCache file of stat cache, or null not to keep it
+     * @param message
+     * @param ident
+     * @param skipIfUnchanged if true and tree equals to tree of head, returns head
+     * @return
+     * @throws IOException
+     */
+    public Commit commitFromDirectory(Path dir, Path statCache, String message, Ident ident, boolean skipIfUnchanged)
+        throws IOException {
+      DirectoryImporter importer = new DirectoryImporter(GitRepository.this, this.repo, dir, statCache);
+      TreeBuilder tree = importer.importTree();
+      Commit commit = this.commit(tree, message, ident, skipIfUnchanged);
+      importer.saveCache();
+      return commit;
+    }
+
+    /**
+     * Returns head if its tree is treeId.
+     * @param treeId
+     * @return head, or null if tree differs or branch does not exist.
+     * @throws IOException
+     */
+    private Commit headIfTreeEquals(ObjectId treeId) throws IOException {
+      Commit head = this.head();
+      return head != null && head.getTreeId().equals(treeId) ? head : null;
+    }
+
+    /**
+     * Insert commit of tree on top of head, and move head to it.
+     * @param treeId
+     * @param inserter
+     * @param message
+     * @param ident
+     * @param skipIfUnchanged returns head instead, if its tree is treeId
+     * @return
+     * @throws IOException
+     */
+    private Commit commitTree(ObjectId treeId, ObjectInserter inserter, String message, Ident ident,
+        boolean skipIfUnchanged) throws IOException {
+      PersonIdent personIdent = ident.toPersonIdent();
 
-        Commit head = this.head();
-        List<ObjectId> parentIds = head != null ? Arrays.asList(head.getObjectId()) : Collections
-            .<ObjectId> emptyList();
+      for (int attempt = 1;; attempt++) {
+        Ref headRef = this.findHeadRef();
+        ObjectId oldHeadId = headRef != null ? headRef.getObjectId() : ObjectId.zeroId();
+        if (skipIfUnchanged && headRef != null) {
+          Commit head = new Commit(oldHeadId);
+          if (head.getTreeId().equals(treeId)) {
+            return head;
+          }
+        }
+        List<ObjectId> parentIds = headRef != null ? Arrays.asList(oldHeadId) : Collections.<ObjectId> emptyList();
 
         CommitBuilder newCommit = new CommitBuilder();
         newCommit.setCommitter(personIdent);
@@ -322,16 +1331,21 @@ public class GitRepository {
 
         ObjectId newHeadId = inserter.insert(newCommit);
         inserter.flush();
-        inserter.close();
 
-        Result updateResult = this.updateTo(newHeadId);
+        // another writer moved head since it was read, so retry on top of it.
+        Result updateResult = this.updateTo(oldHeadId, newHeadId);
+        if (updateResult == Result.LOCK_FAILURE && attempt < MAX_UPDATE_ATTEMPTS) {
+          backoff(attempt);
+          continue;
+        }
+        checkUpdated(updateResult);
 
         if (updateResult == Result.FAST_FORWARD) {
-          this.repo.writeMergeCommitMsg(null);
-          this.repo.writeMergeHeads(null);
+          GitRepository.this.writeMergeState(null, null);
         }
+        GitRepository.this.indexCommit(newHeadId);
 
-        return this.head();
+        return new Commit(newHeadId);
       }
     }
 
@@ -344,11 +1358,40 @@ public class GitRepository {
     private Result updateTo(ObjectId newCommitId) throws IOException {
       Commit head = this.head();
       ObjectId oldHeadId = head != null ? head.getObjectId() : ObjectId.zeroId();
+      return this.updateTo(oldHeadId, newCommitId);
+    }
 
+    /**
+     * Update head to new commit only if head is still oldHeadId.
+     * @param oldHeadId expected current head, zeroId if branch must not exist
+     * @param newCommitId
+     * @return LOCK_FAILURE if head has been moved by others
+     * @throws IOException
+     */
+    private Result updateTo(ObjectId oldHeadId, ObjectId newCommitId) throws IOException {
       RefUpdate refUpdate = this.repo.updateRef(Constants.R_HEADS + this.name);
       refUpdate.setNewObjectId(newCommitId);
       refUpdate.setExpectedOldObjectId(oldHeadId);
-      return refUpdate.update();
+      Result result = refUpdate.update();
+      GitRepository.this.fireRefUpdated(refUpdate.getName(), oldHeadId, newCommitId, result);
+      return result;
+    }
+
+    /**
+     * Throws if ref update did not succeed.
+     * @param result
+     * @throws IOException
+     */
+    private void checkUpdated(Result result) throws IOException {
+      switch (result) {
+      case NEW:
+      case FAST_FORWARD:
+      case FORCED:
+      case NO_CHANGE:
+        return;
+      default:
+        throw new IOException("Failed to update branch " + this.name + ": " + result);
+      }
     }
 
     /**
@@ -360,7 +1403,10 @@ public class GitRepository {
       RefUpdate refDelete = this.repo.updateRef(Constants.R_HEADS + this.name);
       refDelete.setRefLogMessage("branch deleted", false);
       refDelete.setForceUpdate(true);
-      return refDelete.delete();
+      Result result = refDelete.delete();
+      ObjectId oldId = refDelete.getOldObjectId() != null ? refDelete.getOldObjectId() : ObjectId.zeroId();
+      GitRepository.this.fireRefUpdated(refDelete.getName(), oldId, ObjectId.zeroId(), result);
+      return result;
     }
 
     /**
@@ -383,44 +1429,57 @@ public class GitRepository {
      * @throws IOException
      */
     public boolean mergeTo(Branch toBranch, Ident ident, boolean delete) throws IOException {
+      long start = System.nanoTime();
       PersonIdent personIdent = ident.toPersonIdent();
-      ObjectInserter inserter = this.repo.newObjectInserter();
 
-      try (RevWalk revWalk = new RevWalk(this.repo)) {
+      try (RevWalk revWalk = new RevWalk(this.repo);
+          ObjectInserter inserter = GitRepository.this.newObjectInserter()) {
         RevCommit srcCommit = revWalk.parseCommit(this.findHeadRef().getObjectId());
 
-        Ref toHeadRef = toBranch.findHeadRef();
-        RevCommit toCommit = revWalk.parseCommit(toHeadRef.getObjectId());
+        Ref headRef = this.repo.exactRef(Constants.HEAD);
+        GitRepository.this.writeMergeState("mergeMessage",
+            headRef != null ? Arrays.asList(headRef.getObjectId()) : null);
 
-        this.repo.writeMergeCommitMsg("mergeMessage");
-        this.repo.writeMergeHeads(Arrays.asList(this.repo.exactRef(Constants.HEAD).getObjectId()));
+        for (int attempt = 1;; attempt++) {
+          Ref toHeadRef = toBranch.findHeadRef();
+          RevCommit toCommit = revWalk.parseCommit(toHeadRef.getObjectId());
 
-        Merger merger = MergeStrategy.RECURSIVE.newMerger(this.repo, true);
-        boolean merge = merger.merge(srcCommit, toCommit);
-        if (!merge) {
-          return false;
-        }
+          Merger merger = MergeStrategy.RECURSIVE.newMerger(this.repo, true);
+          boolean merge = merger.merge(srcCommit, toCommit);
+          if (!merge) {
+            return false;
+          }
 
-        ObjectId mergeResultTreeId = merger.getResultTreeId();
+          ObjectId mergeResultTreeId = merger.getResultTreeId();
 
-        CommitBuilder newCommit = new CommitBuilder();
-        newCommit.setCommitter(personIdent);
-        newCommit.setAuthor(personIdent);
-        newCommit.setMessage("merge commit message");
-        newCommit.setParentIds(toCommit.getId(), srcCommit.getId());
-        newCommit.setTreeId(mergeResultTreeId);
+          CommitBuilder newCommit = new CommitBuilder();
+          newCommit.setCommitter(personIdent);
+          newCommit.setAuthor(personIdent);
+          newCommit.setMessage("merge commit message");
+          newCommit.setParentIds(toCommit.getId(), srcCommit.getId());
+          newCommit.setTreeId(mergeResultTreeId);
 
-        ObjectId newHeadId = inserter.insert(newCommit);
-        inserter.flush();
-        inserter.close();
+          ObjectId newHeadId = inserter.insert(newCommit);
+          inserter.flush();
 
-        toBranch.updateTo(newHeadId);
+          // toBranch moved while merging, so merge again onto its new head.
+          Result updateResult = toBranch.updateTo(toCommit.getId(), newHeadId);
+          if (updateResult == Result.LOCK_FAILURE && attempt < MAX_UPDATE_ATTEMPTS) {
+            backoff(attempt);
+            continue;
+          }
+          toBranch.checkUpdated(updateResult);
+          GitRepository.this.indexCommit(newHeadId);
+          break;
+        }
 
         if (delete) {
           this.delete();
         }
 
         return true;
+      } finally {
+        GitRepository.this.fireOperation(Operation.MERGE, start);
       }
     }
 
@@ -440,9 +1499,37 @@ public class GitRepository {
       return newBranch;
     }
 
+    /**
+     * Copy this branch into another repository as a single pack, typically from in-memory into file-backed one.
+     * The branch of the same name in target must not exist or be an ancestor of this head. If large object store is
+     * enabled, its contents are copied into store of target, which must be enabled too.
+     * @param target
+     * @return branch of target
+     * @throws IOException
+     */
+    public Branch flushTo(GitRepository target) throws IOException {
+      Ref headRef = this.findHeadRef();
+      if (headRef == null) {
+        throw new IOException("Branch " + this.name + " does not exist.");
+      }
+      ObjectId headId = headRef.getObjectId();
+
+      GitRepository.this.replicateLargeObjects(target);
+      long[] sent = PackTransfer.copy(this.repo, target.repo, Collections.singleton(headId));
+      if (sent[0] > 0) {
+        target.fireObjectsInserted((int) sent[0], sent[1]);
+      }
+
+      Branch targetBranch = target.branch(this.name);
+      targetBranch.checkUpdated(targetBranch.updateTo(headId));
+      target.indexCommit(headId);
+      return targetBranch;
+    }
+
   }
 
   public List<Commit> listCommits() throws RevisionSyntaxException, AmbiguousObjectException, IOException {
+    long start = System.nanoTime();
     List<Commit> commits = new ArrayList<Commit>();
     try (RevWalk walk = new RevWalk(this.repo)) {
       Map<String, Ref> refs = this.repo.getRefDatabase().getRefs(ALL);
@@ -458,6 +1545,8 @@ public class GitRepository {
         } catch (MissingObjectException | IncorrectObjectTypeException e) {
         }
       }
+    } finally {
+      this.fireOperation(Operation.LIST_COMMITS, start);
     }
 
     return commits;
@@ -513,6 +1602,14 @@ public class GitRepository {
       return this.rev.getId();
     }
 
+    /**
+     * Returns id of root tree.
+     * @return
+     */
+    public ObjectId getTreeId() {
+      return this.rev.getTree().getId();
+    }
+
     /**
      * Returns comment.
      * @return
@@ -565,7 +1662,7 @@ public class GitRepository {
       tb.setObjectId(this.rev);
 
       // write the tag object
-      try (ObjectInserter inserter = this.repo.newObjectInserter()) {
+      try (ObjectInserter inserter = GitRepository.this.newObjectInserter()) {
         ObjectId tagId = inserter.insert(tb);
         inserter.flush();
 
@@ -573,7 +1670,9 @@ public class GitRepository {
           RefUpdate tagRef = this.repo.updateRef(Constants.R_TAGS + tb.getTag());
           tagRef.setNewObjectId(tagId);
           tagRef.setRefLogMessage("tagged " + name, false);
-          tagRef.update(revWalk);
+          Result result = tagRef.update(revWalk);
+          ObjectId oldId = tagRef.getOldObjectId() != null ? tagRef.getOldObjectId() : ObjectId.zeroId();
+          GitRepository.this.fireRefUpdated(tagRef.getName(), oldId, tagId, result);
         }
       }
     }
@@ -588,6 +1687,7 @@ public class GitRepository {
      */
     public Dir getDir() throws MissingObjectException, IncorrectObjectTypeException, CorruptObjectException,
         IOException {
+      long start = System.nanoTime();
       RevTree tree = this.rev.getTree();
 
       Dir root = new Dir();
@@ -595,6 +1695,8 @@ public class GitRepository {
       try (TreeWalk treeWalk = new TreeWalk(this.repo)) {
         treeWalk.addTree(tree);
         this.walkTree(root, treeWalk);
+      } finally {
+        GitRepository.this.fireOperation(Operation.GET_DIR, start);
       }
 
       return root;
@@ -621,7 +1723,7 @@ public class GitRepository {
           treeWalk.enterSubtree();
           dir.put(walkTree(new Dir(treeWalk.getNameString()), treeWalk));
         } else {
-          dir.put(treeWalk.getNameString(), this.repo.open(treeWalk.getObjectId(0)).getBytes());
+          dir.put(treeWalk.getNameString(), GitRepository.this.open(treeWalk.getObjectId(0)));
         }
       }
       return dir;
@@ -633,6 +1735,7 @@ public class GitRepository {
      * @throws IOException
      */
     public List<String> listFiles() throws IOException {
+      long start = System.nanoTime();
       List<String> list = new ArrayList<String>();
 
       try (RevWalk revWalk = new RevWalk(this.repo)) {
@@ -647,11 +1750,113 @@ public class GitRepository {
             list.add(treeWalk.getPathString());
           }
         }
+      } finally {
+        GitRepository.this.fireOperation(Operation.LIST_FILES, start);
       }
 
       return list;
     }
 
+    /**
+     * List direct children of directory, without sizes.
+     * @param prefix path of directory, or null or empty for root
+     * @param cursor nextCursor of previous page, or null for first page
+     * @param limit max number of entries
+     * @return
+     * @throws FileNotFoundException if prefix is not a directory in this commit
+     * @throws IOException
+     */
+    public DirectoryListing listDirectory(String prefix, String cursor, int limit) throws IOException {
+      return this.listDirectory(prefix, cursor, limit, false);
+    }
+
+    /**
+     * List direct children of directory.
+     * Only trees on the way to prefix and the directory itself are read, and entries are skipped up to cursor, which
+     * is the name of the last entry of previous page. As tree order is fixed, pages stay stable.
+     * @param prefix path of directory, or null or empty for root
+     * @param cursor nextCursor of previous page, or null for first page
+     * @param limit max number of entries
+     * @param withSize true to look up sizes of files, cached by blob id
+     * @return
+     * @throws FileNotFoundException if prefix is not a directory in this commit
+     * @throws IOException
+     */
+    public DirectoryListing listDirectory(String prefix, String cursor, int limit, boolean withSize)
+        throws IOException {
+      if (limit <= 0) {
+        throw new IllegalArgumentException("Limit must be positive: " + limit);
+      }
+      long start = System.nanoTime();
+      String dir = prefix == null ? "" : prefix.replaceAll("^/+|/+$", "");
+      try (ObjectReader reader = this.repo.newObjectReader()) {
+        ObjectId treeId = this.rev.getTree();
+        if (!dir.isEmpty()) {
+          try (TreeWalk treeWalk = TreeWalk.forPath(reader, dir, this.rev.getTree())) {
+            if (treeWalk == null || !treeWalk.isSubtree()) {
+              throw new FileNotFoundException("Couldnt find directory.");
+            }
+            treeId = treeWalk.getObjectId(0);
+          }
+        }
+
+        byte[] after = cursor != null ? cursor.getBytes(StandardCharsets.UTF_8) : null;
+        List<DirectoryEntry> entries = new ArrayList<DirectoryEntry>();
+        String nextCursor = null;
+        for (CanonicalTreeParser parser = new CanonicalTreeParser(null, reader, treeId); !parser.eof(); parser
+            .next()) {
+          FileMode mode = parser.getEntryFileMode();
+          if (after != null && compareEntry(parser, mode, after) <= 0) {
+            continue;
+          }
+          if (entries.size() == limit) {
+            DirectoryEntry last = entries.get(limit - 1);
+            nextCursor = last.isDirectory() ? last.name + "/" : last.name;
+            break;
+          }
+          String name = new String(parser.getEntryPathBuffer(), parser.getNameOffset(), parser.getNameLength(),
+              StandardCharsets.UTF_8);
+          ObjectId objectId = parser.getEntryObjectId();
+          long size = -1;
+          if (withSize && mode.getObjectType() == Constants.OBJ_BLOB) {
+            size = GitRepository.this.blobSize(reader, objectId);
+          }
+          entries.add(new DirectoryEntry(name, dir.isEmpty() ? name : dir + "/" + name, mode, objectId, size));
+        }
+        return new DirectoryListing(entries, nextCursor);
+      } finally {
+        GitRepository.this.fireOperation(Operation.LIST_DIRECTORY, start);
+      }
+    }
+
+    /**
+     * Compare name of current entry, with '/' appended to trees as git sorts them, with cursor.
+     * @param parser
+     * @param mode
+     * @param cursor
+     * @return
+     */
+    private int compareEntry(CanonicalTreeParser parser, FileMode mode, byte[] cursor) {
+      byte[] buf = parser.getEntryPathBuffer();
+      int offset = parser.getNameOffset();
+      int length = parser.getNameLength();
+      int n = Math.min(length, cursor.length);
+      for (int i = 0; i < n; i++) {
+        int c = (buf[offset + i] & 0xFF) - (cursor[i] & 0xFF);
+        if (c != 0) {
+          return c;
+        }
+      }
+      if (mode == FileMode.TREE && length < cursor.length) {
+        int c = '/' - (cursor[length] & 0xFF);
+        return c != 0 ? c : length + 1 - cursor.length;
+      }
+      if (mode == FileMode.TREE) {
+        return length + 1 - cursor.length;
+      }
+      return length - cursor.length;
+    }
+
     /**
      * Returns inputstream of file contained by head of this brach.
      * @param path
@@ -660,6 +1865,7 @@ public class GitRepository {
      * @throws FileNotFoundException
      */
     public InputStream getStream(String path) throws IOException, FileNotFoundException {
+      long start = System.nanoTime();
       try (RevWalk revWalk = new RevWalk(this.repo)) {
         RevCommit commit = this.rev;
         RevTree tree = revWalk.parseTree(commit.getTree().getId());
@@ -672,8 +1878,174 @@ public class GitRepository {
             throw new FileNotFoundException("Couldnt find file.");
           }
 
-          return this.repo.open(treeWalk.getObjectId(0)).openStream();
+          return GitRepository.this.open(treeWalk.getObjectId(0)).openStream();
+        }
+      } finally {
+        GitRepository.this.fireOperation(Operation.GET_STREAM, start);
+      }
+    }
+
+    /**
+     * Write files of this commit as archive, streaming each blob from object database.
+     * @param format
+     * @param out not closed
+     * @param pathPrefix only files under this path are exported, or null for all
+     * @throws IOException
+     */
+    public void exportArchive(ArchiveFormat format, OutputStream out, String pathPrefix) throws IOException {
+      this.exportArchive(format, out, pathPrefix, 0);
+    }
+
+    /**
+     * Write files of this commit as archive into channel.
+     * @param format
+     * @param channel not closed
+     * @param pathPrefix only files under this path are exported, or null for all
+     * @throws IOException
+     */
+    public void exportArchive(ArchiveFormat format, WritableByteChannel channel, String pathPrefix)
+        throws IOException {
+      this.exportArchive(format, channel, pathPrefix, 0);
+    }
+
+    /**
+     * Write files of this commit as archive into channel.
+     * @param format
+     * @param channel not closed
+     * @param pathPrefix only files under this path are exported, or null for all
+     * @param prefetch number of following entries to inflate in parallel while writing
+     * @throws IOException
+     */
+    public void exportArchive(ArchiveFormat format, WritableByteChannel channel, String pathPrefix, int prefetch)
+        throws IOException {
+      OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel), 64 * 1024);
+      this.exportArchive(format, out, pathPrefix, prefetch);
+      out.flush();
+    }
+
+    /**
+     * Write files of this commit as archive.
+     * Blobs are opened by worker threads up to prefetch entries ahead, so that small ones are already inflated when
+     * written. Large ones are streamed.
+     * @param format
+     * @param out not closed
+     * @param pathPrefix only files under this path are exported, or null for all
+     * @param prefetch number of following entries to inflate in parallel while writing
+     * @throws IOException
+     */
+    public void exportArchive(ArchiveFormat format, OutputStream out, String pathPrefix, int prefetch)
+        throws IOException {
+      long start = System.nanoTime();
+      ExecutorService executor = prefetch > 0 ? Executors.newFixedThreadPool(Math.min(prefetch, Runtime
+          .getRuntime().availableProcessors())) : null;
+
+      try (TreeWalk treeWalk = new TreeWalk(this.repo)) {
+        treeWalk.addTree(this.rev.getTree());
+        treeWalk.setRecursive(true);
+        if (pathPrefix != null && !pathPrefix.isEmpty()) {
+          treeWalk.setFilter(PathFilter.create(pathPrefix));
+        }
+
+        ArchiveWriter writer = format.newWriter(out);
+        Deque<ArchiveEntry> window = new ArrayDeque<ArchiveEntry>();
+        while (treeWalk.next()) {
+          FileMode mode = treeWalk.getFileMode(0);
+          if (mode == FileMode.GITLINK) {
+            continue;
+          }
+          window.add(new ArchiveEntry(treeWalk.getPathString(), mode, treeWalk.getObjectId(0), executor));
+          if (window.size() > prefetch) {
+            window.poll().writeTo(writer, this.getTime());
+          }
+        }
+        while (!window.isEmpty()) {
+          window.poll().writeTo(writer, this.getTime());
         }
+        writer.finish();
+      } finally {
+        if (executor != null) {
+          executor.shutdownNow();
+        }
+        GitRepository.this.fireOperation(Operation.EXPORT_ARCHIVE, start);
+      }
+    }
+
+    /**
+     * Write files of this commit into directory, which holds the commit materialized last time.
+     * The commit is read from state file of the directory, or all files are written if there is none.
+     * @param target
+     * @return number of files written or deleted
+     * @throws IOException
+     */
+    public int materialize(Path target) throws IOException {
+      Materializer materializer = new Materializer(GitRepository.this, this.repo, target);
+      ObjectId previousId = materializer.readState();
+      Commit previous = null;
+      if (previousId != null && this.repo.hasObject(previousId)) {
+        previous = new Commit(previousId);
+      }
+      return this.materialize(target, previous);
+    }
+
+    /**
+     * Write files of this commit into directory holding previous commit, writing only changed files and deleting
+     * removed ones. Files not tracked by previous are left as they are.
+     * Materialized commit is recorded into state file of the directory, kept in glitch/materialized of this
+     * repository, so nothing but files of the commit is written into the directory.
+     * @param target
+     * @param previous commit in directory, or null to write all files
+     * @return number of files written or deleted
+     * @throws IOException
+     */
+    public int materialize(Path target, Commit previous) throws IOException {
+      long start = System.nanoTime();
+      try {
+        Materializer materializer = new Materializer(GitRepository.this, this.repo, target);
+        return materializer.run(previous != null ? previous.rev.getTree() : null, this.rev.getTree(),
+            this.getObjectId());
+      } finally {
+        GitRepository.this.fireOperation(Operation.MATERIALIZE, start);
+      }
+    }
+
+    /**
+     * Search lines containing text in files of this commit.
+     * @param text
+     * @param pathPrefix only files under this path are searched, or null for all
+     * @return matches, produced lazily by worker threads
+     * @throws IOException
+     */
+    public ContentSearch search(String text, String pathPrefix) throws IOException {
+      return this.search(Pattern.compile(Pattern.quote(text)), pathPrefix);
+    }
+
+    /**
+     * Search lines matching pattern in files of this commit.
+     * Binary files and files over 16MiB are skipped.
+     * @param pattern
+     * @param pathPrefix only files under this path are searched, or null for all
+     * @return matches, produced lazily by worker threads
+     * @throws IOException
+     */
+    public ContentSearch search(Pattern pattern, String pathPrefix) throws IOException {
+      return new ContentSearch(GitRepository.this, this.repo, this.rev.getTree(), pattern, pathPrefix);
+    }
+
+    /**
+     * Blame file of this commit, line ranges with the commit and author which last changed them.
+     * Results are cached per path and commit, in git directory if any, so blame of a new commit only diffs it against
+     * cached blame of its parents.
+     * @param path
+     * @return ranges in line order
+     * @throws FileNotFoundException if path is not a file in this commit
+     * @throws IOException
+     */
+    public List<BlameRange> blame(String path) throws IOException {
+      long start = System.nanoTime();
+      try {
+        return GitRepository.this.blamer().blame(this.rev, path);
+      } finally {
+        GitRepository.this.fireOperation(Operation.BLAME, start);
       }
     }
 
@@ -684,16 +2056,57 @@ public class GitRepository {
 
   }
 
+  /** Entry of archive, whose blob may be opened in advance. */
+  private class ArchiveEntry {
+    final String path;
+    final FileMode mode;
+    final ObjectId objectId;
+    final Future<ObjectLoader> loader;
+
+    ArchiveEntry(String path, FileMode mode, final ObjectId objectId, ExecutorService executor) {
+      this.path = path;
+      this.mode = mode;
+      this.objectId = objectId;
+      this.loader = executor == null ? null : executor.submit(new Callable<ObjectLoader>() {
+        @Override
+        public ObjectLoader call() throws IOException {
+          return GitRepository.this.open(objectId);
+        }
+      });
+    }
+
+    void writeTo(ArchiveWriter writer, int time) throws IOException {
+      ObjectLoader loader;
+      if (this.loader == null) {
+        loader = GitRepository.this.open(this.objectId);
+      } else {
+        try {
+          loader = this.loader.get();
+        } catch (InterruptedException e) {
+          throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+          throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+      }
+      try (InputStream in = loader.openStream()) {
+        writer.putEntry(this.path, this.mode, loader.getSize(), time, in);
+      }
+    }
+  }
+
   public List<Tag> listTags() throws IOException {
+    long start = System.nanoTime();
     List<Tag> tags = new ArrayList<Tag>();
     try (RevWalk revWalk = new RevWalk(repo)) {
       Map<String, Ref> refList = repo.getRefDatabase().getRefs(Constants.R_TAGS);
       for (Ref ref : refList.values()) {
         tags.add(new Tag(ref));
       }
-    }
 
-    Collections.sort(tags);
+      Collections.sort(tags);
+    } finally {
+      this.fireOperation(Operation.LIST_TAGS, start);
+    }
 
     return tags;
   }
@@ -0,0 +1,739 @@
+package glitch;
+
+import static org.eclipse.jgit.lib.RefDatabase.ALL;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.eclipse.jgit.errors.IncorrectObjectTypeException;
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevSort;
+import org.eclipse.jgit.revwalk.RevWalk;
+
+/**
+ * Persistent, columnar index of commit history.
+ * Each commit gets a position, parents always before children, and its id, commit time, interned author and first
+ * two parents' positions are stored in memory-mapped column files. Queries scan the columns without parsing commits.
+ * Positions are found by id through a hash table, also memory-mapped and rebuilt from ids on open, so the heap holds
+ * only authors and one bit per commit.
+ * Readers take no lock: they see the index as last published by a writer, which publishes after writing columns.
+ * Columns are forced to disk and the size recorded at most every SYNC_INTERVAL_MILLIS and on close; commits indexed
+ * after that are indexed again from refs on next open after a crash.
+ * Octopus merges keep only their first two parents.
+ * @author yohei224
+ */
+public class HistoryIndex implements Closeable {
+
+  /** position of no parent */
+  public static final int NONE = -1;
+
+  private static final int MAGIC = 0x676c6869;
+  private static final int VERSION = 1;
+  private static final int INITIAL_CAPACITY = 1024;
+  /** commits at most, so the lookup table of twice as many slots stays addressable */
+  private static final int MAX_SIZE = 1 << 29;
+  /** interval to force columns and record size, in milliseconds */
+  private static final long SYNC_INTERVAL_MILLIS = 1000;
+  /** files replaced by rebuild, meta last */
+  private static final String[] FILES = { "ids", "times", "authors", "parents", "authors.txt", "lookup" };
+
+  private final Path dir;
+  /** index as seen by readers */
+  private volatile State state;
+  /** held while rebuilding, not to block writers meanwhile */
+  private final Object rebuildLock = new Object();
+
+  // written by writers only, guarded by this.
+  private Columns columns;
+  /** positions referenced as parent by another indexed commit */
+  private final BitSet hasChild = new BitSet();
+  private int size;
+  private long syncedAt;
+
+  /**
+   * Open index stored in dir, creating it if absent.
+   * @param dir
+   * @return
+   * @throws IOException
+   */
+  public static HistoryIndex open(File dir) throws IOException {
+    return new HistoryIndex(dir.toPath());
+  }
+
+  private HistoryIndex(Path dir) throws IOException {
+    this.dir = dir;
+    Files.createDirectories(dir);
+
+    int size = 0;
+    Path meta = dir.resolve("meta");
+    if (Files.exists(meta)) {
+      ByteBuffer header = java.nio.ByteBuffer.wrap(Files.readAllBytes(meta));
+      if (header.remaining() < 12 || header.getInt() != MAGIC || header.getInt() != VERSION) {
+        throw new IOException("Unknown history index in " + dir);
+      }
+      size = header.getInt();
+    }
+
+    this.columns = new Columns(dir, size);
+    for (int i = 0; i < size; i++) {
+      this.markChildOf(i);
+    }
+    this.size = size;
+    this.syncedAt = System.currentTimeMillis();
+    this.publish();
+  }
+
+  private void markChildOf(int position) {
+    int p1 = this.columns.parents.getInt(position, 0);
+    int p2 = this.columns.parents.getInt(position, 4);
+    if (p1 != NONE) {
+      this.hasChild.set(p1);
+    }
+    if (p2 != NONE) {
+      this.hasChild.set(p2);
+    }
+  }
+
+  /**
+   * Returns number of indexed commits.
+   * @return
+   */
+  public int size() {
+    return this.state.size;
+  }
+
+  /**
+   * Returns position of commit, or NONE if not indexed.
+   * @param id
+   * @return
+   */
+  public int positionOf(AnyObjectId id) {
+    State state = this.state;
+    return state.lookup.find(state.columns.ids, state.size, id);
+  }
+
+  public ObjectId id(int position) {
+    State state = this.state;
+    state.check(position);
+    byte[] raw = new byte[Constants.OBJECT_ID_LENGTH];
+    state.columns.ids.get(position, raw);
+    return ObjectId.fromRaw(raw);
+  }
+
+  public int commitTime(int position) {
+    State state = this.state;
+    state.check(position);
+    return state.columns.times.getInt(position, 0);
+  }
+
+  /**
+   * Returns author as "name &lt;email&gt;".
+   * @param position
+   * @return
+   */
+  public String author(int position) {
+    State state = this.state;
+    state.check(position);
+    return state.columns.authorNames.get(state.columns.authors.getInt(position, 0));
+  }
+
+  /**
+   * Returns positions of first and second parent, NONE if absent.
+   * @param position
+   * @return
+   */
+  public int[] parents(int position) {
+    State state = this.state;
+    state.check(position);
+    Column parents = state.columns.parents;
+    return new int[] { parents.getInt(position, 0), parents.getInt(position, 4) };
+  }
+
+  /**
+   * Returns positions of commits committed in [from, to), in seconds since epoch.
+   * @param from
+   * @param to
+   * @return
+   */
+  public int[] commitsBetween(int from, int to) {
+    State state = this.state;
+    int[] result = new int[16];
+    int n = 0;
+    for (int i = 0; i < state.size; i++) {
+      int time = state.columns.times.getInt(i, 0);
+      if (time >= from && time < to) {
+        result = append(result, n++, i);
+      }
+    }
+    return Arrays.copyOf(result, n);
+  }
+
+  /**
+   * Returns positions of commits by author.
+   * @param name
+   * @param email
+   * @return
+   */
+  public int[] commitsBy(String name, String email) {
+    State state = this.state;
+    Integer author = state.columns.authorIndex.get(authorKey(name, email));
+    if (author == null) {
+      return new int[0];
+    }
+    int[] result = new int[16];
+    int n = 0;
+    for (int i = 0; i < state.size; i++) {
+      if (state.columns.authors.getInt(i, 0) == author) {
+        result = append(result, n++, i);
+      }
+    }
+    return Arrays.copyOf(result, n);
+  }
+
+  /**
+   * Returns positions along first parents from a commit, newest first.
+   * @param position
+   * @param limit
+   * @return
+   */
+  public int[] firstParents(int position, int limit) {
+    State state = this.state;
+    int[] result = new int[Math.min(limit, 16)];
+    int n = 0;
+    for (int p = position; p != NONE && n < limit; p = state.columns.parents.getInt(p, 0)) {
+      state.check(p);
+      result = append(result, n++, p);
+    }
+    return Arrays.copyOf(result, n);
+  }
+
+  /**
+   * Returns whether ancestor is reachable from descendant through indexed parents.
+   * Parents are always positioned before children, so positions below ancestor are never visited.
+   * @param ancestor
+   * @param descendant
+   * @return
+   */
+  public boolean isAncestor(int ancestor, int descendant) {
+    State state = this.state;
+    state.check(ancestor);
+    state.check(descendant);
+    BitSet seen = new BitSet();
+    int[] stack = new int[16];
+    int n = 0;
+    stack[n++] = descendant;
+    while (n > 0) {
+      int p = stack[--n];
+      if (p == ancestor) {
+        return true;
+      }
+      if (p < ancestor || seen.get(p)) {
+        continue;
+      }
+      seen.set(p);
+      for (int k = 0; k < 2; k++) {
+        int parent = state.columns.parents.getInt(p, k * 4);
+        if (parent != NONE) {
+          stack = append(stack, n++, parent);
+        }
+      }
+    }
+    return false;
+  }
+
+  private static int[] append(int[] array, int index, int value) {
+    int[] a = index < array.length ? array : Arrays.copyOf(array, array.length * 2);
+    a[index] = value;
+    return a;
+  }
+
+  /**
+   * Index commits reachable from all refs.
+   * @param repo
+   * @return number of commits added
+   * @throws IOException
+   */
+  synchronized int update(Repository repo) throws IOException {
+    List<ObjectId> tips = new ArrayList<ObjectId>();
+    for (Ref ref : repo.getRefDatabase().getRefs(ALL).values()) {
+      Ref peeled = ref.isPeeled() ? ref : repo.peel(ref);
+      ObjectId id = peeled.getPeeledObjectId() != null ? peeled.getPeeledObjectId() : peeled.getObjectId();
+      if (id != null) {
+        tips.add(id);
+      }
+    }
+    return this.update(repo, tips);
+  }
+
+  /**
+   * Index commits reachable from tips.
+   * @param repo
+   * @param tips
+   * @return number of commits added
+   * @throws IOException
+   */
+  synchronized int update(Repository repo, Collection<? extends ObjectId> tips) throws IOException {
+    int before = this.size;
+    try (RevWalk walk = new RevWalk(repo)) {
+      walk.sort(RevSort.TOPO, true);
+      walk.sort(RevSort.REVERSE, true);
+      boolean started = false;
+      for (ObjectId tip : tips) {
+        if (this.find(tip) != NONE) {
+          continue;
+        }
+        try {
+          walk.markStart(walk.parseCommit(tip));
+          started = true;
+        } catch (IncorrectObjectTypeException e) {
+          // not a commit.
+        }
+      }
+      if (!started) {
+        return 0;
+      }
+      // indexed commits without indexed children bound the walk.
+      byte[] raw = new byte[Constants.OBJECT_ID_LENGTH];
+      for (int i = this.hasChild.nextClearBit(0); i < this.size; i = this.hasChild.nextClearBit(i + 1)) {
+        this.columns.ids.get(i, raw);
+        ObjectId id = ObjectId.fromRaw(raw);
+        if (repo.hasObject(id)) {
+          try {
+            walk.markUninteresting(walk.parseCommit(id));
+          } catch (MissingObjectException e) {
+            // pruned.
+          }
+        }
+      }
+
+      for (RevCommit commit : walk) {
+        if (this.find(commit) == NONE) {
+          this.append(commit);
+        }
+      }
+    }
+    this.publish();
+    if (System.currentTimeMillis() - this.syncedAt >= SYNC_INTERVAL_MILLIS) {
+      this.sync();
+    }
+    return this.size - before;
+  }
+
+  /**
+   * Index commits reachable from all refs again from scratch, dropping commits no ref reaches anymore.
+   * The new index is built in files beside and then replaces the current one, so readers and writers go on meanwhile;
+   * commits indexed meanwhile are indexed again after. Positions given before are no longer valid.
+   * @param repo
+   * @return number of commits indexed
+   * @throws IOException
+   */
+  int rebuild(Repository repo) throws IOException {
+    synchronized (this.rebuildLock) {
+      Path nextDir = this.dir.resolve("next");
+      deleteFiles(nextDir);
+      HistoryIndex next = new HistoryIndex(nextDir);
+      boolean swapped = false;
+      try {
+        next.update(repo);
+        next.sync();
+        synchronized (this) {
+          this.swap(next);
+          swapped = true;
+        }
+      } finally {
+        if (!swapped) {
+          next.close();
+        }
+      }
+      deleteFiles(nextDir);
+      this.update(repo);
+      return this.size();
+    }
+  }
+
+  /**
+   * Replace files and columns by those of next.
+   * @param next
+   * @throws IOException
+   */
+  private void swap(HistoryIndex next) throws IOException {
+    // record the empty index first, so a crash while moving files leaves it to be indexed again on open.
+    this.writeMeta(0);
+    for (String name : FILES) {
+      Files.move(next.dir.resolve(name), this.dir.resolve(name), StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    }
+    // readers still holding old columns keep reading their mappings, which closing does not unmap.
+    Columns old = this.columns;
+    this.columns = next.columns;
+    this.size = next.size;
+    this.hasChild.clear();
+    this.hasChild.or(next.hasChild);
+    this.publish();
+    this.sync();
+    old.close();
+  }
+
+  private static void deleteFiles(Path dir) throws IOException {
+    if (!Files.isDirectory(dir)) {
+      return;
+    }
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+      for (Path file : files) {
+        Files.delete(file);
+      }
+    }
+  }
+
+  /** Position of id as seen by writers, which may be ahead of readers. */
+  private int find(AnyObjectId id) {
+    return this.columns.lookup.find(this.columns.ids, this.size, id);
+  }
+
+  private void append(RevCommit commit) throws IOException {
+    int position = this.size;
+    if (position >= MAX_SIZE) {
+      throw new IOException("History index is full in " + this.dir);
+    }
+    Columns columns = this.columns;
+    if (position >= columns.ids.capacity) {
+      columns.expand(this.dir, this.size);
+    }
+
+    PersonIdent author = commit.getAuthorIdent();
+    int authorId = columns.authorId(authorKey(author.getName(), author.getEmailAddress()));
+    byte[] raw = new byte[Constants.OBJECT_ID_LENGTH];
+    commit.copyRawTo(raw, 0);
+    columns.ids.put(position, raw);
+    columns.times.putInt(position, 0, commit.getCommitTime());
+    columns.authors.putInt(position, 0, authorId);
+    for (int k = 0; k < 2; k++) {
+      int parent = k < commit.getParentCount() ? this.find(commit.getParent(k)) : NONE;
+      columns.parents.putInt(position, k * 4, parent);
+    }
+
+    columns.lookup.add(position, commit);
+    this.markChildOf(position);
+    this.size++;
+  }
+
+  /** Let readers see what is written so far. */
+  private void publish() {
+    this.state = new State(this.columns, this.columns.lookup, this.size);
+  }
+
+  /** Record size, after columns and authors reach the disk, so a crash never leaves it ahead of them. */
+  synchronized void sync() throws IOException {
+    this.columns.force();
+    this.writeMeta(this.size);
+    this.syncedAt = System.currentTimeMillis();
+  }
+
+  private void writeMeta(int size) throws IOException {
+    ByteBuffer header = java.nio.ByteBuffer.allocate(12);
+    header.putInt(MAGIC).putInt(VERSION).putInt(size);
+    Path tmp = this.dir.resolve("meta.tmp");
+    Files.write(tmp, header.array());
+    Files.move(tmp, this.dir.resolve("meta"), StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private static int grow(int capacity) {
+    return capacity < 1 << 30 ? capacity * 2 : Integer.MAX_VALUE;
+  }
+
+  private static String authorKey(String name, String email) {
+    return name + " <" + email + ">";
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    try {
+      this.sync();
+    } finally {
+      this.columns.close();
+    }
+  }
+
+  /** Index as published to readers */
+  private static class State {
+    final Columns columns;
+    final Lookup lookup;
+    final int size;
+
+    State(Columns columns, Lookup lookup, int size) {
+      this.columns = columns;
+      this.lookup = lookup;
+      this.size = size;
+    }
+
+    void check(int position) {
+      if (position < 0 || position >= this.size) {
+        throw new IndexOutOfBoundsException("position " + position + ", size " + this.size);
+      }
+    }
+  }
+
+  /** Files of the index */
+  private static class Columns implements Closeable {
+    final Column ids;
+    final Column times;
+    final Column authors;
+    final Column parents;
+    /** replaced when columns grow, readers keep the one they got */
+    volatile Lookup lookup;
+
+    final List<String> authorNames = new CopyOnWriteArrayList<String>();
+    final Map<String, Integer> authorIndex = new ConcurrentHashMap<String, Integer>();
+    private final Writer authorsOut;
+
+    /**
+     * Open columns in dir holding size commits, and build their lookup table.
+     * @param dir
+     * @param size
+     * @throws IOException
+     */
+    Columns(Path dir, int size) throws IOException {
+      int capacity = Math.max(INITIAL_CAPACITY, grow(Integer.highestOneBit(Math.max(size, 1))));
+      this.ids = new Column(dir.resolve("ids"), Constants.OBJECT_ID_LENGTH, capacity);
+      this.times = new Column(dir.resolve("times"), 4, capacity);
+      this.authors = new Column(dir.resolve("authors"), 4, capacity);
+      this.parents = new Column(dir.resolve("parents"), 8, capacity);
+
+      Path authorsFile = dir.resolve("authors.txt");
+      if (Files.exists(authorsFile)) {
+        try (BufferedReader reader = Files.newBufferedReader(authorsFile, StandardCharsets.UTF_8)) {
+          for (String line; (line = reader.readLine()) != null;) {
+            this.authorIndex.put(line, this.authorNames.size());
+            this.authorNames.add(line);
+          }
+        }
+      }
+      this.authorsOut = Files.newBufferedWriter(authorsFile, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+          StandardOpenOption.APPEND);
+      this.lookup = this.newLookup(dir.resolve("lookup"), size);
+    }
+
+    int authorId(String key) throws IOException {
+      Integer authorId = this.authorIndex.get(key);
+      if (authorId == null) {
+        authorId = this.authorNames.size();
+        this.authorNames.add(key);
+        this.authorIndex.put(key, authorId);
+        this.authorsOut.write(key);
+        this.authorsOut.write('\n');
+      }
+      return authorId;
+    }
+
+    /**
+     * Double capacity, rehashing the lookup table into a file beside and replacing the current one.
+     * @param dir
+     * @param size
+     * @throws IOException
+     */
+    void expand(Path dir, int size) throws IOException {
+      int capacity = HistoryIndex.grow(this.ids.capacity);
+      this.ids.remap(capacity);
+      this.times.remap(capacity);
+      this.authors.remap(capacity);
+      this.parents.remap(capacity);
+
+      Path tmp = dir.resolve("lookup.tmp");
+      Lookup lookup = this.newLookup(tmp, size);
+      Files.move(tmp, dir.resolve("lookup"), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      Lookup old = this.lookup;
+      this.lookup = lookup;
+      old.close();
+    }
+
+    /**
+     * Create lookup table in file sized for capacity of ids, holding first size positions.
+     * @param file
+     * @param size
+     * @return
+     * @throws IOException
+     */
+    private Lookup newLookup(Path file, int size) throws IOException {
+      Lookup lookup = new Lookup(file, Math.min(this.ids.capacity, MAX_SIZE) * 2);
+      byte[] raw = new byte[Constants.OBJECT_ID_LENGTH];
+      for (int i = 0; i < size; i++) {
+        this.ids.get(i, raw);
+        lookup.add(i, ObjectId.fromRaw(raw));
+      }
+      return lookup;
+    }
+
+    void force() throws IOException {
+      this.authorsOut.flush();
+      this.ids.force();
+      this.times.force();
+      this.authors.force();
+      this.parents.force();
+    }
+
+    @Override
+    public void close() throws IOException {
+      this.authorsOut.close();
+      this.lookup.close();
+      this.ids.close();
+      this.times.close();
+      this.authors.close();
+      this.parents.close();
+    }
+  }
+
+  /** Open addressing hash table of positions by id in a memory-mapped file, at most half full */
+  private static class Lookup implements Closeable {
+    private final Column slots;
+    private final int mask;
+
+    /**
+     * Create empty table in file, replacing what it held.
+     * @param file
+     * @param capacity number of slots, a power of two
+     * @throws IOException
+     */
+    Lookup(Path file, int capacity) throws IOException {
+      Files.deleteIfExists(file);
+      this.slots = new Column(file, 4, capacity);
+      this.mask = capacity - 1;
+    }
+
+    /**
+     * Returns position of id among the first size positions of ids, or NONE.
+     * @param ids
+     * @param size
+     * @param id
+     * @return
+     */
+    int find(Column ids, int size, AnyObjectId id) {
+      byte[] raw = new byte[Constants.OBJECT_ID_LENGTH];
+      for (int i = id.hashCode() & this.mask;; i = (i + 1) & this.mask) {
+        // slots hold position + 1, 0 when empty.
+        int position = this.slots.getInt(i, 0) - 1;
+        if (position == NONE) {
+          return NONE;
+        }
+        if (position < size) {
+          ids.get(position, raw);
+          if (id.equals(ObjectId.fromRaw(raw))) {
+            return position;
+          }
+        }
+      }
+    }
+
+    void add(int position, AnyObjectId id) {
+      int i = id.hashCode() & this.mask;
+      while (this.slots.getInt(i, 0) != 0) {
+        i = (i + 1) & this.mask;
+      }
+      this.slots.putInt(i, 0, position + 1);
+    }
+
+    @Override
+    public void close() throws IOException {
+      this.slots.close();
+    }
+  }
+
+  /** Fixed width values in a memory-mapped file, mapped in chunks so the file may exceed 2 GiB */
+  private static class Column implements Closeable {
+    /** entries per chunk, so offsets within a chunk fit in int for any width */
+    private static final int CHUNK_BITS = 24;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+
+    private final FileChannel channel;
+    private final int width;
+    private MappedByteBuffer[] chunks = new MappedByteBuffer[0];
+    int capacity;
+
+    Column(Path file, int width, int capacity) throws IOException {
+      this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+          StandardOpenOption.WRITE);
+      this.width = width;
+      this.remap(capacity);
+    }
+
+    void remap(int capacity) throws IOException {
+      int count = (int) (((long) capacity + CHUNK_SIZE - 1) >>> CHUNK_BITS);
+      MappedByteBuffer[] chunks = Arrays.copyOf(this.chunks, count);
+      // the last chunk may have been mapped partially.
+      for (int i = Math.max(this.chunks.length - 1, 0); i < count; i++) {
+        long start = (long) i << CHUNK_BITS;
+        long entries = Math.min(capacity - start, CHUNK_SIZE);
+        chunks[i] = this.channel.map(FileChannel.MapMode.READ_WRITE, start * this.width, entries * this.width);
+      }
+      this.chunks = chunks;
+      this.capacity = capacity;
+    }
+
+    void force() {
+      for (MappedByteBuffer chunk : this.chunks) {
+        chunk.force();
+      }
+    }
+
+    private int offset(int position, int index) {
+      return (position & (CHUNK_SIZE - 1)) * this.width + index;
+    }
+
+    int getInt(int position, int index) {
+      return this.chunks[position >>> CHUNK_BITS].getInt(this.offset(position, index));
+    }
+
+    void putInt(int position, int index, int value) {
+      this.chunks[position >>> CHUNK_BITS].putInt(this.offset(position, index), value);
+    }
+
+    void get(int position, byte[] dst) {
+      MappedByteBuffer chunk = this.chunks[position >>> CHUNK_BITS];
+      int offset = this.offset(position, 0);
+      for (int i = 0; i < this.width; i++) {
+        dst[i] = chunk.get(offset + i);
+      }
+    }
+
+    void put(int position, byte[] src) {
+      MappedByteBuffer chunk = this.chunks[position >>> CHUNK_BITS];
+      int offset = this.offset(position, 0);
+      for (int i = 0; i < this.width; i++) {
+        chunk.put(offset + i, src[i]);
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      this.channel.close();
+    }
+  }
+
+}
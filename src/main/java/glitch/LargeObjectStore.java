@@ -0,0 +1,410 @@
+package glitch;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.eclipse.jgit.errors.LargeObjectException;
+import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectLoader;
+import org.eclipse.jgit.lib.ObjectStream;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.StoredConfig;
+
+/**
+ * Content-addressed store of large blobs kept out of the object database.
+ * Blobs at or above threshold are stored uncompressed as files named by their SHA-256, sharded by its first two bytes
+ * like git-lfs, and trees hold a git-lfs pointer blob instead. Pointers are resolved on read, streaming from the store.
+ * @author yohei224
+ */
+public class LargeObjectStore {
+
+  /** Minimum threshold, pointers are always smaller than this */
+  public static final long MIN_THRESHOLD = 1024;
+
+  private static final String VERSION = "version https://git-lfs.github.com/spec/v1";
+  private static final Pattern POINTER = Pattern.compile(Pattern.quote(VERSION)
+      + "\n(?:[a-z0-9.-]+ [^\n]*\n)*?oid sha256:([0-9a-f]{64})\n(?:[a-z0-9.-]+ [^\n]*\n)*?size ([0-9]{1,18})\n"
+      + "(?:[a-z0-9.-]+ [^\n]*\n)*");
+
+  /** Section of repository config where the store is recorded */
+  static final String CONFIG_SECTION = "lfs";
+
+  private static final String CONFIG_DIRECTORY = "objectsDirectory";
+  private static final String CONFIG_THRESHOLD = "threshold";
+
+  private static final Pattern OID = Pattern.compile("[0-9a-f]{64}");
+
+  /** Size above which stored objects are not loaded into memory, same as default of core.streamFileThreshold */
+  private static final long STREAM_THRESHOLD = 50 * 1024 * 1024;
+
+  private final Path dir;
+  private final long threshold;
+
+  private LargeObjectStore(Path dir, long threshold) {
+    this.dir = dir;
+    this.threshold = threshold;
+  }
+
+  /**
+   * Open store in dir, creating it if missing.
+   * @param dir
+   * @param threshold size in bytes from which blobs are stored out of line
+   * @return
+   * @throws IOException
+   */
+  public static LargeObjectStore open(File dir, long threshold) throws IOException {
+    if (threshold < MIN_THRESHOLD) {
+      throw new IllegalArgumentException("Threshold must be at least " + MIN_THRESHOLD + ": " + threshold);
+    }
+    Files.createDirectories(dir.toPath());
+    return new LargeObjectStore(dir.toPath(), threshold);
+  }
+
+  /**
+   * Open store recorded in config of repository, so that another instance or process resolves pointers too.
+   * @param repo
+   * @return store, or null if none is recorded
+   * @throws IOException
+   */
+  static LargeObjectStore load(Repository repo) throws IOException {
+    Config config = repo.getConfig();
+    String path = config.getString(CONFIG_SECTION, null, CONFIG_DIRECTORY);
+    if (path == null) {
+      return null;
+    }
+    File dir = new File(path);
+    if (!dir.isAbsolute() && repo.getDirectory() != null) {
+      dir = new File(repo.getDirectory(), path);
+    }
+    return open(dir, config.getLong(CONFIG_SECTION, null, CONFIG_THRESHOLD, MIN_THRESHOLD));
+  }
+
+  /**
+   * Record this store in config of repository, relative to git directory if it is inside.
+   * @param repo
+   * @throws IOException
+   */
+  void save(Repository repo) throws IOException {
+    String path = this.dir.toAbsolutePath().toString();
+    if (repo.getDirectory() != null) {
+      Path gitDir = repo.getDirectory().toPath().toAbsolutePath();
+      if (this.dir.toAbsolutePath().startsWith(gitDir)) {
+        path = gitDir.relativize(this.dir.toAbsolutePath()).toString().replace(File.separatorChar, '/');
+      }
+    }
+    StoredConfig config = repo.getConfig();
+    config.setString(CONFIG_SECTION, null, CONFIG_DIRECTORY, path);
+    config.setLong(CONFIG_SECTION, null, CONFIG_THRESHOLD, this.threshold);
+    config.save();
+  }
+
+  /**
+   * Copy stored objects target lacks, so that pointers replicated there resolve.
+   * @param target
+   * @return number of objects copied
+   * @throws IOException
+   */
+  int copyTo(final LargeObjectStore target) throws IOException {
+    if (Files.isSameFile(this.dir, target.dir)) {
+      return 0;
+    }
+    final int[] copied = new int[1];
+    Files.walkFileTree(this.dir, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+        String oid = file.getFileName().toString();
+        if (!attrs.isRegularFile() || !OID.matcher(oid).matches()) {
+          // incoming temporary files.
+          return FileVisitResult.CONTINUE;
+        }
+        Path path = target.path(oid);
+        if (!Files.isRegularFile(path)) {
+          Files.createDirectories(path.getParent());
+          Path tmp = Files.createTempFile(target.dir, "incoming-", ".tmp");
+          try {
+            Files.copy(file, tmp, StandardCopyOption.REPLACE_EXISTING);
+            Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE);
+          } finally {
+            Files.deleteIfExists(tmp);
+          }
+          copied[0]++;
+        }
+        return FileVisitResult.CONTINUE;
+      }
+    });
+    return copied[0];
+  }
+
+  /**
+   * Returns directory of this store.
+   * @return
+   */
+  public File getDirectory() {
+    return this.dir.toFile();
+  }
+
+  /**
+   * Returns size in bytes from which blobs are stored out of line.
+   * @return
+   */
+  public long getThreshold() {
+    return this.threshold;
+  }
+
+  /**
+   * Returns file of stored object.
+   * @param oid hex SHA-256 of content
+   * @return
+   */
+  Path path(String oid) {
+    return this.dir.resolve(oid.substring(0, 2)).resolve(oid.substring(2, 4)).resolve(oid);
+  }
+
+  /**
+   * Returns inserter which replaces large blobs with pointers.
+   * @param delegate inserter of pointers and all other objects
+   * @param store false to compute pointers only, writing nothing into this store
+   * @return
+   */
+  ObjectInserter newInserter(ObjectInserter delegate, boolean store) {
+    return new PointerInserter(delegate, store);
+  }
+
+  /**
+   * Resolve loader of pointer blob into loader streaming from this store, others are returned as is.
+   * Pointers to objects not in this store, like those of git-lfs repositories, are returned as is too.
+   * @param objectId
+   * @param loader
+   * @return
+   * @throws IOException if pointed object is corrupt in this store
+   */
+  ObjectLoader resolve(ObjectId objectId, ObjectLoader loader) throws IOException {
+    if (loader.getType() != Constants.OBJ_BLOB || loader.isLarge() || loader.getSize() >= MIN_THRESHOLD) {
+      return loader;
+    }
+    Matcher matcher = POINTER.matcher(new String(loader.getCachedBytes(), StandardCharsets.UTF_8));
+    if (!matcher.matches()) {
+      return loader;
+    }
+    Path path = this.path(matcher.group(1));
+    long size = Long.parseLong(matcher.group(2));
+    if (!Files.isRegularFile(path)) {
+      // not ours, a plain blob which happens to be a git-lfs pointer.
+      return loader;
+    }
+    if (Files.size(path) != size) {
+      throw new IOException("Large object " + matcher.group(1) + " of " + objectId.name() + " is corrupt.");
+    }
+    return new StoredLoader(path, size);
+  }
+
+  /**
+   * Check stored content of pointer blob against its name, other blobs are ignored.
+   * @param objectId
+   * @param loader
+   * @throws IOException if stored content is corrupt
+   */
+  void verify(ObjectId objectId, ObjectLoader loader) throws IOException {
+    Path path = pathOf(this.resolve(objectId, loader));
+    if (path == null) {
+      return;
+    }
+    MessageDigest md = sha256();
+    byte[] buf = new byte[64 * 1024];
+    try (InputStream in = Files.newInputStream(path)) {
+      for (int n; (n = in.read(buf)) > 0;) {
+        md.update(buf, 0, n);
+      }
+    }
+    String oid = path.getFileName().toString();
+    if (!hex(md.digest()).equals(oid)) {
+      throw new IOException("Large object " + oid + " of " + objectId.name() + " is corrupt.");
+    }
+  }
+
+  /**
+   * Returns file which loader streams from, or null if it is not of a large object store.
+   * @param loader
+   * @return
+   */
+  static Path pathOf(ObjectLoader loader) {
+    return loader instanceof StoredLoader ? ((StoredLoader) loader).path : null;
+  }
+
+  private static byte[] pointer(String oid, long size) {
+    return (VERSION + "\noid sha256:" + oid + "\nsize " + size + "\n").getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static MessageDigest sha256() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static String hex(byte[] digest) {
+    StringBuilder sb = new StringBuilder(digest.length * 2);
+    for (byte b : digest) {
+      sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+    }
+    return sb.toString();
+  }
+
+  /** Inserter storing large blobs and inserting pointers to them. */
+  private class PointerInserter extends ObjectInserter.Filter {
+    private final ObjectInserter delegate;
+    private final boolean store;
+
+    PointerInserter(ObjectInserter delegate, boolean store) {
+      this.delegate = delegate;
+      this.store = store;
+    }
+
+    @Override
+    protected ObjectInserter delegate() {
+      return this.delegate;
+    }
+
+    @Override
+    public ObjectId insert(int type, byte[] data) throws IOException {
+      return this.insert(type, data, 0, data.length);
+    }
+
+    @Override
+    public ObjectId insert(int type, byte[] data, int off, int len) throws IOException {
+      if (type != Constants.OBJ_BLOB || len < LargeObjectStore.this.threshold) {
+        return super.insert(type, data, off, len);
+      }
+      MessageDigest md = sha256();
+      md.update(data, off, len);
+      String oid = hex(md.digest());
+      if (this.store) {
+        Path path = LargeObjectStore.this.path(oid);
+        if (!Files.isRegularFile(path)) {
+          Files.createDirectories(path.getParent());
+          Path tmp = Files.createTempFile(LargeObjectStore.this.dir, "incoming-", ".tmp");
+          try {
+            try (OutputStream out = Files.newOutputStream(tmp)) {
+              out.write(data, off, len);
+            }
+            this.moveInto(tmp, path);
+          } finally {
+            Files.deleteIfExists(tmp);
+          }
+        }
+      }
+      return super.insert(Constants.OBJ_BLOB, pointer(oid, len));
+    }
+
+    @Override
+    public ObjectId insert(int type, long length, InputStream in) throws IOException {
+      if (type != Constants.OBJ_BLOB || length < LargeObjectStore.this.threshold) {
+        return super.insert(type, length, in);
+      }
+      MessageDigest md = sha256();
+      byte[] buf = new byte[64 * 1024];
+      Path tmp = this.store ? Files.createTempFile(LargeObjectStore.this.dir, "incoming-", ".tmp") : null;
+      try {
+        try (OutputStream out = tmp != null ? Files.newOutputStream(tmp) : null) {
+          long remaining = length;
+          while (remaining > 0) {
+            int n = in.read(buf, 0, (int) Math.min(buf.length, remaining));
+            if (n < 0) {
+              throw new EOFException("Blob is shorter than " + length + " bytes.");
+            }
+            md.update(buf, 0, n);
+            if (out != null) {
+              out.write(buf, 0, n);
+            }
+            remaining -= n;
+          }
+        }
+        String oid = hex(md.digest());
+        if (tmp != null) {
+          Path path = LargeObjectStore.this.path(oid);
+          if (!Files.isRegularFile(path)) {
+            Files.createDirectories(path.getParent());
+            this.moveInto(tmp, path);
+          }
+        }
+        return super.insert(Constants.OBJ_BLOB, pointer(oid, length));
+      } finally {
+        if (tmp != null) {
+          Files.deleteIfExists(tmp);
+        }
+      }
+    }
+
+    private void moveInto(Path tmp, Path path) throws IOException {
+      // same content under same name, so losing a race is harmless.
+      Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE);
+    }
+  }
+
+  /** Loader of stored object, read from its file. */
+  private static class StoredLoader extends ObjectLoader {
+    private final Path path;
+    private final long size;
+
+    StoredLoader(Path path, long size) {
+      this.path = path;
+      this.size = size;
+    }
+
+    @Override
+    public int getType() {
+      return Constants.OBJ_BLOB;
+    }
+
+    @Override
+    public long getSize() {
+      return this.size;
+    }
+
+    @Override
+    public boolean isLarge() {
+      return this.size > STREAM_THRESHOLD;
+    }
+
+    @Override
+    public byte[] getCachedBytes() throws LargeObjectException {
+      if (this.isLarge()) {
+        throw new LargeObjectException();
+      }
+      try {
+        return Files.readAllBytes(this.path);
+      } catch (IOException e) {
+        // callers fall back to openStream, which reports the failure itself.
+        LargeObjectException error = new LargeObjectException();
+        error.initCause(e);
+        throw error;
+      }
+    }
+
+    @Override
+    public ObjectStream openStream() throws IOException {
+      return new ObjectStream.Filter(Constants.OBJ_BLOB, this.size, new BufferedInputStream(
+          Files.newInputStream(this.path)));
+    }
+  }
+
+}
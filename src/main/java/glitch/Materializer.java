@@ -0,0 +1,255 @@
+package glitch;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectLoader;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevTree;
+import org.eclipse.jgit.treewalk.EmptyTreeIterator;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+
+/**
+ * Writes difference between two trees into a directory.
+ * Deletions are applied first, and then changed files are written in parallel.
+ * The materialized commit is recorded in the repository's glitch/materialized directory, in a file named by hash of the
+ * target path, so that nothing but tracked files is written into the target.
+ * @author yohei224
+ */
+class Materializer {
+
+  /** Name of file which recorded the materialized commit inside target, read once and deleted */
+  private static final String LEGACY_STATE_FILE = ".glitch-materialized";
+
+  private final GitRepository git;
+  private final Repository repo;
+  private final Path target;
+  /** file recording the materialized commit, or null if repository has no directory */
+  private final Path stateFile;
+
+  Materializer(GitRepository git, Repository repo, Path target) {
+    this.git = git;
+    this.repo = repo;
+    this.target = target;
+    File gitDir = git.getDirectory();
+    if (gitDir != null) {
+      String name = ObjectId.fromRaw(Constants.newMessageDigest().digest(
+          target.toAbsolutePath().normalize().toString().getBytes(StandardCharsets.UTF_8))).name();
+      this.stateFile = new File(gitDir, "glitch/materialized/" + name).toPath();
+    } else {
+      this.stateFile = null;
+    }
+  }
+
+  /**
+   * Returns commit recorded in state file, or null.
+   * @return
+   * @throws IOException
+   */
+  ObjectId readState() throws IOException {
+    if (this.stateFile == null) {
+      return null;
+    }
+    Path state = this.stateFile;
+    if (!Files.isRegularFile(state)) {
+      state = this.target.resolve(LEGACY_STATE_FILE);
+      if (!Files.isRegularFile(state)) {
+        return null;
+      }
+    }
+    String id = new String(Files.readAllBytes(state), StandardCharsets.US_ASCII).trim();
+    return ObjectId.isId(id) ? ObjectId.fromString(id) : null;
+  }
+
+  private void writeState(ObjectId commitId) throws IOException {
+    if (this.stateFile == null) {
+      return;
+    }
+    Files.createDirectories(this.stateFile.getParent());
+    Path tmp = this.stateFile.resolveSibling(this.stateFile.getFileName() + ".tmp");
+    Files.write(tmp, (commitId.name() + "\n").getBytes(StandardCharsets.US_ASCII));
+    Files.move(tmp, this.stateFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    Files.deleteIfExists(this.target.resolve(LEGACY_STATE_FILE));
+  }
+
+  /**
+   * Materialize newTree over a directory holding oldTree.
+   * @param oldTree null if directory holds nothing known
+   * @param newTree
+   * @param commitId recorded into state file
+   * @return number of paths written or deleted
+   * @throws IOException
+   */
+  int run(RevTree oldTree, RevTree newTree, ObjectId commitId) throws IOException {
+    Files.createDirectories(this.target);
+
+    List<String> deletes = new ArrayList<String>();
+    final List<String> writes = new ArrayList<String>();
+    final List<ObjectId> writeIds = new ArrayList<ObjectId>();
+    final List<FileMode> writeModes = new ArrayList<FileMode>();
+
+    try (TreeWalk treeWalk = new TreeWalk(this.repo)) {
+      if (oldTree != null) {
+        treeWalk.addTree(oldTree);
+      } else {
+        treeWalk.addTree(new EmptyTreeIterator());
+      }
+      treeWalk.addTree(newTree);
+      treeWalk.setRecursive(true);
+      treeWalk.setFilter(TreeFilter.ANY_DIFF);
+
+      while (treeWalk.next()) {
+        FileMode oldMode = treeWalk.getFileMode(0);
+        FileMode newMode = treeWalk.getFileMode(1);
+        if (newMode == FileMode.MISSING || newMode == FileMode.GITLINK) {
+          if (oldMode != FileMode.MISSING && oldMode != FileMode.GITLINK) {
+            deletes.add(treeWalk.getPathString());
+          }
+        } else {
+          writes.add(treeWalk.getPathString());
+          writeIds.add(treeWalk.getObjectId(1));
+          writeModes.add(newMode);
+        }
+      }
+    }
+
+    // deepest first, so that emptied directories can be removed on the way up.
+    Collections.sort(deletes, Collections.reverseOrder());
+    for (String path : deletes) {
+      this.delete(path);
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+    try {
+      List<Future<Void>> futures = new ArrayList<Future<Void>>();
+      for (int i = 0; i < writes.size(); i++) {
+        final int index = i;
+        futures.add(executor.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws IOException {
+            Materializer.this.write(writes.get(index), writeIds.get(index), writeModes.get(index));
+            return null;
+          }
+        }));
+      }
+      for (Future<Void> future : futures) {
+        future.get();
+      }
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException();
+    } catch (ExecutionException e) {
+      throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+
+    this.writeState(commitId);
+    return deletes.size() + writes.size();
+  }
+
+  private void delete(String path) throws IOException {
+    Path file = this.target.resolve(path);
+    Files.deleteIfExists(file);
+    for (Path dir = file.getParent(); dir != null && !dir.equals(this.target); dir = dir.getParent()) {
+      try {
+        Files.delete(dir);
+      } catch (DirectoryNotEmptyException | NoSuchFileException e) {
+        break;
+      }
+    }
+  }
+
+  private void write(String path, ObjectId blobId, FileMode mode) throws IOException {
+    Path file = this.target.resolve(path);
+    Files.createDirectories(file.getParent());
+    if (Files.isDirectory(file, LinkOption.NOFOLLOW_LINKS)) {
+      throw new IOException("Directory " + file + " is in the way.");
+    }
+
+    ObjectLoader loader = this.git.open(blobId);
+    if (mode == FileMode.SYMLINK) {
+      Files.deleteIfExists(file);
+      Files.createSymbolicLink(file, file.getFileSystem().getPath(
+          new String(loader.getCachedBytes(), StandardCharsets.UTF_8)));
+      return;
+    }
+    if (Files.isSymbolicLink(file)) {
+      Files.delete(file);
+    }
+
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING)) {
+      Path stored = LargeObjectStore.pathOf(loader);
+      if (!loader.isLarge() && stored == null) {
+        ByteBuffer buffer = ByteBuffer.wrap(loader.getCachedBytes());
+        while (buffer.hasRemaining()) {
+          channel.write(buffer);
+        }
+      } else {
+        // file of large object store is copied by the kernel.
+        try (ReadableByteChannel in = stored != null ? FileChannel.open(stored) : Channels.newChannel(loader
+            .openStream())) {
+          long size = loader.getSize();
+          long position = 0;
+          while (position < size) {
+            long n = channel.transferFrom(in, position, size - position);
+            if (n <= 0) {
+              throw new IOException("Unexpected end of " + blobId.name());
+            }
+            position += n;
+          }
+        }
+      }
+    }
+
+    this.setExecutable(file, mode == FileMode.EXECUTABLE_FILE);
+  }
+
+  private void setExecutable(Path file, boolean executable) throws IOException {
+    try {
+      Set<PosixFilePermission> permissions = Files.getPosixFilePermissions(file);
+      boolean changed = executable ? permissions.add(PosixFilePermission.OWNER_EXECUTE) : permissions
+          .remove(PosixFilePermission.OWNER_EXECUTE);
+      if (executable) {
+        changed |= permissions.add(PosixFilePermission.GROUP_EXECUTE);
+        changed |= permissions.add(PosixFilePermission.OTHERS_EXECUTE);
+      } else {
+        changed |= permissions.remove(PosixFilePermission.GROUP_EXECUTE);
+        changed |= permissions.remove(PosixFilePermission.OTHERS_EXECUTE);
+      }
+      if (changed) {
+        Files.setPosixFilePermissions(file, permissions);
+      }
+    } catch (UnsupportedOperationException e) {
+      file.toFile().setExecutable(executable);
+    }
+  }
+
+}
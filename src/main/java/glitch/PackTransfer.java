@@ -0,0 +1,83 @@
+package glitch;
+
+import static org.eclipse.jgit.lib.RefDatabase.ALL;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.eclipse.jgit.internal.storage.pack.PackWriter;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.transport.PackParser;
+
+/**
+ * Copies objects between repositories in process as a single thin pack.
+ * @author yohei224
+ */
+class PackTransfer {
+
+  private PackTransfer() {
+  }
+
+  /**
+   * Copy objects reachable from wants which destination lacks.
+   * Tips of destination refs known by source are used as haves, and objects may be sent as deltas against them.
+   * @param src
+   * @param dst
+   * @param wants
+   * @return number of objects sent, and pack size in bytes
+   * @throws IOException
+   */
+  static long[] copy(Repository src, Repository dst, Collection<ObjectId> wants) throws IOException {
+    Set<ObjectId> haves = new HashSet<ObjectId>();
+    for (Ref ref : dst.getRefDatabase().getRefs(ALL).values()) {
+      ObjectId id = ref.getObjectId();
+      if (id != null && src.hasObject(id)) {
+        haves.add(id);
+      }
+    }
+
+    Set<ObjectId> needed = new HashSet<ObjectId>();
+    for (ObjectId want : wants) {
+      if (!dst.hasObject(want)) {
+        needed.add(want);
+      }
+    }
+    if (needed.isEmpty()) {
+      return new long[] { 0, 0 };
+    }
+
+    File tmp = File.createTempFile("glitch-", ".pack");
+    try (PackWriter writer = new PackWriter(src)) {
+      writer.setThin(true);
+      writer.preparePack(NullProgressMonitor.INSTANCE, needed, haves);
+      try (OutputStream out = new BufferedOutputStream(new FileOutputStream(tmp))) {
+        writer.writePack(NullProgressMonitor.INSTANCE, NullProgressMonitor.INSTANCE, out);
+      }
+
+      try (ObjectInserter inserter = dst.newObjectInserter();
+          InputStream in = new BufferedInputStream(new FileInputStream(tmp))) {
+        PackParser parser = inserter.newPackParser(in);
+        parser.setAllowThin(true);
+        parser.parse(NullProgressMonitor.INSTANCE);
+        inserter.flush();
+      }
+      return new long[] { writer.getObjectCount(), tmp.length() };
+    } finally {
+      tmp.delete();
+    }
+  }
+
+}
@@ -0,0 +1,216 @@
+package glitch;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.RefUpdate.Result;
+import org.eclipse.jgit.transport.URIish;
+
+/**
+ * Replicates branches and tags of a repository to a mirror as they are updated.
+ * Updated branches are replicated in background either right after each update, or batched on a fixed schedule, and
+ * all tags with them. Failed branches are kept and retried on the next run.
+ * @author yohei224
+ */
+public class Replicator extends RepositoryListener.Adapter implements Closeable {
+
+  private final GitRepository source;
+
+  private final GitRepository mirror;
+
+  private final URIish uri;
+
+  private final boolean immediate;
+
+  private final ScheduledExecutorService executor;
+
+  private final Set<String> dirty = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+  /** Tags updated since last run */
+  private final AtomicBoolean tagsDirty = new AtomicBoolean();
+
+  private volatile IOException lastFailure;
+
+  private Replicator(GitRepository source, GitRepository mirror, URIish uri, long period, TimeUnit unit) {
+    this.source = source;
+    this.mirror = mirror;
+    this.uri = uri;
+    this.immediate = period <= 0;
+    this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "glitch-replicator");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    if (!this.immediate) {
+      this.executor.scheduleWithFixedDelay(new Runnable() {
+        @Override
+        public void run() {
+          Replicator.this.replicate();
+        }
+      }, period, period, unit);
+    }
+    source.addListener(this);
+  }
+
+  /**
+   * Replicate each branch into mirror right after it is updated.
+   * @param source
+   * @param mirror
+   * @return
+   */
+  public static Replicator afterUpdate(GitRepository source, GitRepository mirror) {
+    return new Replicator(source, mirror, null, 0, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Replicate each branch into remote right after it is updated.
+   * @param source
+   * @param uri
+   * @return
+   */
+  public static Replicator afterUpdate(GitRepository source, URIish uri) {
+    return new Replicator(source, null, uri, 0, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Replicate branches updated since last run into mirror periodically.
+   * @param source
+   * @param mirror
+   * @param period
+   * @param unit
+   * @return
+   */
+  public static Replicator scheduled(GitRepository source, GitRepository mirror, long period, TimeUnit unit) {
+    return new Replicator(source, mirror, null, period, unit);
+  }
+
+  /**
+   * Replicate branches updated since last run into remote periodically.
+   * @param source
+   * @param uri
+   * @param period
+   * @param unit
+   * @return
+   */
+  public static Replicator scheduled(GitRepository source, URIish uri, long period, TimeUnit unit) {
+    return new Replicator(source, null, uri, period, unit);
+  }
+
+  @Override
+  public void refUpdated(String refName, ObjectId oldId, ObjectId newId, Result result) {
+    switch (result) {
+    case NEW:
+    case FAST_FORWARD:
+    case FORCED:
+      break;
+    default:
+      return;
+    }
+    boolean added;
+    if (refName.startsWith(Constants.R_HEADS)) {
+      added = this.dirty.add(refName.substring(Constants.R_HEADS.length()));
+    } else if (refName.startsWith(Constants.R_TAGS)) {
+      added = !this.tagsDirty.getAndSet(true);
+    } else {
+      return;
+    }
+    if (added && this.immediate) {
+      this.executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          Replicator.this.replicate();
+        }
+      });
+    }
+  }
+
+  /**
+   * Replicate pending branches now and wait for it.
+   * @throws IOException failure of this run
+   */
+  public void flush() throws IOException {
+    try {
+      IOException failure = this.executor.submit(new Callable<IOException>() {
+        @Override
+        public IOException call() {
+          return Replicator.this.replicate();
+        }
+      }).get();
+      if (failure != null) {
+        throw failure;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException();
+    } catch (ExecutionException e) {
+      throw new IOException(e.getCause());
+    }
+  }
+
+  /**
+   * Returns failure of last run, or null if it succeeded.
+   * @return
+   */
+  public IOException getLastFailure() {
+    return this.lastFailure;
+  }
+
+  private IOException replicate() {
+    // branches marked again after being taken are read after their ref update, so nothing is lost.
+    List<String> branches = new ArrayList<String>();
+    for (Iterator<String> it = this.dirty.iterator(); it.hasNext();) {
+      branches.add(it.next());
+      it.remove();
+    }
+    boolean tags = this.tagsDirty.getAndSet(false);
+    if (branches.isEmpty() && !tags) {
+      return null;
+    }
+    // tags are replicated with any branches, with all branches if only tags changed.
+    String[] names = branches.toArray(new String[branches.size()]);
+    try {
+      if (this.mirror != null) {
+        this.source.replicateTo(this.mirror, names);
+      } else {
+        this.source.replicateTo(this.uri, names);
+      }
+      this.lastFailure = null;
+    } catch (IOException | RuntimeException e) {
+      this.dirty.addAll(branches);
+      if (tags) {
+        this.tagsDirty.set(true);
+      }
+      this.lastFailure = e instanceof IOException ? (IOException) e : new IOException(e);
+    }
+    return this.lastFailure;
+  }
+
+  /**
+   * Stop replication, pending branches are not replicated.
+   */
+  @Override
+  public void close() {
+    this.source.removeListener(this);
+    this.executor.shutdownNow();
+  }
+
+}
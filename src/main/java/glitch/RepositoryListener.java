@@ -0,0 +1,80 @@
+package glitch;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.RefUpdate.Result;
+
+/**
+ * Instrumentation SPI of GitRepository.
+ * Callbacks are invoked synchronously on the calling thread, so implementations must be cheap and thread-safe.
+ * @author yohei224
+ */
+public interface RepositoryListener {
+
+  /** Instrumented operations */
+  enum Operation {
+    COMMIT, FORMAT_DIR, MERGE, GET_DIR, GET_STREAM, LIST_FILES, LIST_COMMITS, LIST_TAGS, EXPORT_ARCHIVE, MATERIALIZE,
+    BLAME, LIST_DIRECTORY, COMPACT
+  }
+
+  /**
+   * Called when an operation finished (successfully or not).
+   * @param operation
+   * @param nanos elapsed time
+   */
+  void operationCompleted(Operation operation, long nanos);
+
+  /**
+   * Called when inserted objects are flushed to the object database.
+   * @param count number of objects
+   * @param bytes total inflated size
+   */
+  void objectsInserted(int count, long bytes);
+
+  /**
+   * Called when an object is opened for reading.
+   * @param count number of objects
+   * @param bytes total inflated size
+   */
+  void objectsRead(int count, long bytes);
+
+  /**
+   * Called after each ref update, including failed ones.
+   * @param refName
+   * @param oldId id before update, zeroId if the ref did not exist
+   * @param newId id requested, zeroId on delete
+   * @param result
+   */
+  void refUpdated(String refName, ObjectId oldId, ObjectId newId, Result result);
+
+  /**
+   * Called on each lookup of a named cache.
+   * @param cache cache name
+   * @param hit
+   */
+  void cacheAccessed(String cache, boolean hit);
+
+  /** Listener which does nothing, to be extended. */
+  public static class Adapter implements RepositoryListener {
+
+    @Override
+    public void operationCompleted(Operation operation, long nanos) {
+    }
+
+    @Override
+    public void objectsInserted(int count, long bytes) {
+    }
+
+    @Override
+    public void objectsRead(int count, long bytes) {
+    }
+
+    @Override
+    public void refUpdated(String refName, ObjectId oldId, ObjectId newId, Result result) {
+    }
+
+    @Override
+    public void cacheAccessed(String cache, boolean hit) {
+    }
+  }
+
+}
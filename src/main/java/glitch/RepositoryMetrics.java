@@ -0,0 +1,291 @@
+package glitch;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.RefUpdate.Result;
+
+/**
+ * Default RepositoryListener which aggregates counters and latency histograms.
+ * Latencies are kept in power-of-two buckets, so recording is lock-free and allocation-free.
+ * @author yohei224
+ */
+public class RepositoryMetrics implements RepositoryListener, RepositoryMetricsMXBean {
+
+  private static final int BUCKETS = 64;
+
+  private final Histogram[] histograms = new Histogram[Operation.values().length];
+
+  private final AtomicLong objectsInserted = new AtomicLong();
+  private final AtomicLong bytesInserted = new AtomicLong();
+  private final AtomicLong objectsRead = new AtomicLong();
+  private final AtomicLong bytesRead = new AtomicLong();
+
+  private final AtomicLongArray refUpdates = new AtomicLongArray(Result.values().length);
+
+  private final ConcurrentMap<String, AtomicLongArray> caches = new ConcurrentHashMap<String, AtomicLongArray>();
+
+  private ObjectName objectName;
+
+  public RepositoryMetrics() {
+    for (int i = 0; i < this.histograms.length; i++) {
+      this.histograms[i] = new Histogram();
+    }
+  }
+
+  @Override
+  public void operationCompleted(Operation operation, long nanos) {
+    this.histograms[operation.ordinal()].record(nanos);
+  }
+
+  @Override
+  public void objectsInserted(int count, long bytes) {
+    this.objectsInserted.addAndGet(count);
+    this.bytesInserted.addAndGet(bytes);
+  }
+
+  @Override
+  public void objectsRead(int count, long bytes) {
+    this.objectsRead.addAndGet(count);
+    this.bytesRead.addAndGet(bytes);
+  }
+
+  @Override
+  public void refUpdated(String refName, ObjectId oldId, ObjectId newId, Result result) {
+    this.refUpdates.incrementAndGet(result.ordinal());
+  }
+
+  @Override
+  public void cacheAccessed(String cache, boolean hit) {
+    AtomicLongArray counter = this.caches.get(cache);
+    if (counter == null) {
+      AtomicLongArray created = new AtomicLongArray(2);
+      counter = this.caches.putIfAbsent(cache, created);
+      if (counter == null) {
+        counter = created;
+      }
+    }
+    counter.incrementAndGet(hit ? 0 : 1);
+  }
+
+  /**
+   * Returns histogram of an operation.
+   * @param operation
+   * @return
+   */
+  public Histogram histogram(Operation operation) {
+    return this.histograms[operation.ordinal()];
+  }
+
+  /**
+   * Returns count of ref updates which ended with result.
+   * @param result
+   * @return
+   */
+  public long refUpdates(Result result) {
+    return this.refUpdates.get(result.ordinal());
+  }
+
+  /**
+   * Returns hit rate of cache, or NaN if never accessed.
+   * @param cache
+   * @return
+   */
+  public double cacheHitRate(String cache) {
+    AtomicLongArray counter = this.caches.get(cache);
+    if (counter == null) {
+      return Double.NaN;
+    }
+    long hits = counter.get(0);
+    long total = hits + counter.get(1);
+    return total == 0 ? Double.NaN : (double) hits / total;
+  }
+
+  @Override
+  public Map<String, Long> getOperationCounts() {
+    Map<String, Long> map = new TreeMap<String, Long>();
+    for (Operation operation : Operation.values()) {
+      map.put(operation.name(), this.histogram(operation).count());
+    }
+    return map;
+  }
+
+  @Override
+  public Map<String, Double> getOperationMeanMicros() {
+    Map<String, Double> map = new TreeMap<String, Double>();
+    for (Operation operation : Operation.values()) {
+      map.put(operation.name(), this.histogram(operation).mean() / 1000d);
+    }
+    return map;
+  }
+
+  @Override
+  public Map<String, Double> getOperationP50Micros() {
+    return this.percentiles(0.50);
+  }
+
+  @Override
+  public Map<String, Double> getOperationP99Micros() {
+    return this.percentiles(0.99);
+  }
+
+  private Map<String, Double> percentiles(double quantile) {
+    Map<String, Double> map = new TreeMap<String, Double>();
+    for (Operation operation : Operation.values()) {
+      map.put(operation.name(), this.histogram(operation).percentile(quantile) / 1000d);
+    }
+    return map;
+  }
+
+  @Override
+  public long getObjectsInserted() {
+    return this.objectsInserted.get();
+  }
+
+  @Override
+  public long getBytesInserted() {
+    return this.bytesInserted.get();
+  }
+
+  @Override
+  public long getObjectsRead() {
+    return this.objectsRead.get();
+  }
+
+  @Override
+  public long getBytesRead() {
+    return this.bytesRead.get();
+  }
+
+  @Override
+  public Map<String, Long> getRefUpdateResults() {
+    Map<String, Long> map = new TreeMap<String, Long>();
+    for (Result result : Result.values()) {
+      long count = this.refUpdates(result);
+      if (count > 0) {
+        map.put(result.name(), count);
+      }
+    }
+    return map;
+  }
+
+  @Override
+  public Map<String, Double> getCacheHitRates() {
+    Map<String, Double> map = new TreeMap<String, Double>();
+    for (String cache : this.caches.keySet()) {
+      map.put(cache, this.cacheHitRate(cache));
+    }
+    return map;
+  }
+
+  @Override
+  public void reset() {
+    for (Histogram histogram : this.histograms) {
+      histogram.reset();
+    }
+    this.objectsInserted.set(0);
+    this.bytesInserted.set(0);
+    this.objectsRead.set(0);
+    this.bytesRead.set(0);
+    for (int i = 0; i < this.refUpdates.length(); i++) {
+      this.refUpdates.set(i, 0);
+    }
+    this.caches.clear();
+  }
+
+  /**
+   * Register this to platform MBeanServer as "glitch:type=RepositoryMetrics,name=[name]".
+   * @param name
+   * @return this
+   * @throws JMException
+   */
+  public synchronized RepositoryMetrics registerMBean(String name) throws JMException {
+    this.unregisterMBean();
+    ObjectName objectName = new ObjectName("glitch:type=RepositoryMetrics,name=" + ObjectName.quote(name));
+    ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+    this.objectName = objectName;
+    return this;
+  }
+
+  /**
+   * Unregister this from platform MBeanServer, if registered.
+   * @throws JMException
+   */
+  public synchronized void unregisterMBean() throws JMException {
+    if (this.objectName == null) {
+      return;
+    }
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    if (server.isRegistered(this.objectName)) {
+      server.unregisterMBean(this.objectName);
+    }
+    this.objectName = null;
+  }
+
+  /** Latency histogram with power-of-two buckets. */
+  public static class Histogram {
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+
+    void record(long nanos) {
+      long value = Math.max(nanos, 0);
+      this.buckets.incrementAndGet(Math.max(BUCKETS - 1 - Long.numberOfLeadingZeros(value), 0));
+      this.count.incrementAndGet();
+      this.sum.addAndGet(value);
+    }
+
+    void reset() {
+      for (int i = 0; i < BUCKETS; i++) {
+        this.buckets.set(i, 0);
+      }
+      this.count.set(0);
+      this.sum.set(0);
+    }
+
+    public long count() {
+      return this.count.get();
+    }
+
+    /**
+     * Returns mean in nanos.
+     * @return
+     */
+    public double mean() {
+      long count = this.count();
+      return count == 0 ? 0d : (double) this.sum.get() / count;
+    }
+
+    /**
+     * Returns upper bound of the bucket containing the quantile, in nanos.
+     * @param quantile 0.0 - 1.0
+     * @return
+     */
+    public double percentile(double quantile) {
+      long count = this.count();
+      if (count == 0) {
+        return 0d;
+      }
+      long rank = (long) Math.ceil(quantile * count);
+      long seen = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+        seen += this.buckets.get(i);
+        if (seen >= rank) {
+          return Math.pow(2, i + 1);
+        }
+      }
+      return Math.pow(2, BUCKETS);
+    }
+  }
+
+}
@@ -0,0 +1,33 @@
+package glitch;
+
+import java.util.Map;
+
+/**
+ * JMX view of RepositoryMetrics.
+ * @author yohei224
+ */
+public interface RepositoryMetricsMXBean {
+
+  Map<String, Long> getOperationCounts();
+
+  Map<String, Double> getOperationMeanMicros();
+
+  Map<String, Double> getOperationP50Micros();
+
+  Map<String, Double> getOperationP99Micros();
+
+  long getObjectsInserted();
+
+  long getBytesInserted();
+
+  long getObjectsRead();
+
+  long getBytesRead();
+
+  Map<String, Long> getRefUpdateResults();
+
+  Map<String, Double> getCacheHitRates();
+
+  void reset();
+
+}
@@ -0,0 +1,67 @@
+package glitch;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How much history of a branch GitRepository.compact keeps, the last N commits or commits of the last T duration.
+ * Head is always kept.
+ * @author yohei224
+ */
+public class RetentionPolicy {
+
+  private final int commits;
+  private final long millis;
+
+  private RetentionPolicy(int commits, long millis) {
+    this.commits = commits;
+    this.millis = millis;
+  }
+
+  /**
+   * Keep the last count commits, newest first in topological order.
+   * @param count
+   * @return
+   */
+  public static RetentionPolicy keepCommits(int count) {
+    if (count <= 0) {
+      throw new IllegalArgumentException("Count must be positive: " + count);
+    }
+    return new RetentionPolicy(count, 0);
+  }
+
+  /**
+   * Keep commits committed within duration before compaction.
+   * @param duration
+   * @param unit
+   * @return
+   */
+  public static RetentionPolicy keepFor(long duration, TimeUnit unit) {
+    if (duration <= 0) {
+      throw new IllegalArgumentException("Duration must be positive: " + duration);
+    }
+    return new RetentionPolicy(0, unit.toMillis(duration));
+  }
+
+  /**
+   * Returns is commit kept, given that all commits before it in the walk are kept.
+   * @param index position of commit from head
+   * @param commitTime in seconds
+   * @param now in milliseconds
+   * @return
+   */
+  boolean retains(int index, int commitTime, long now) {
+    if (index == 0) {
+      return true;
+    }
+    if (this.commits > 0) {
+      return index < this.commits;
+    }
+    return commitTime * 1000L >= now - this.millis;
+  }
+
+  @Override
+  public String toString() {
+    return this.commits > 0 ? "keep " + this.commits + " commits" : "keep " + this.millis + " ms";
+  }
+
+}
@@ -0,0 +1,29 @@
+package glitch;
+
+/**
+ * A line matched by Commit.search.
+ * @author yohei224
+ */
+public class SearchMatch {
+
+  /** path of file */
+  public final String path;
+
+  /** 1-based line number */
+  public final int lineNumber;
+
+  /** matched line, without line terminator */
+  public final String line;
+
+  SearchMatch(String path, int lineNumber, String line) {
+    this.path = path;
+    this.lineNumber = lineNumber;
+    this.line = line;
+  }
+
+  @Override
+  public String toString() {
+    return this.path + ":" + this.lineNumber + ":" + this.line;
+  }
+
+}
@@ -0,0 +1,263 @@
+package glitch;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.TreeFormatter;
+
+import glitch.GitRepository.Blob;
+
+/**
+ * Compact builder of a whole tree keyed by full paths, for very large commits.
+ * Entries are kept in flat arrays (UTF-8 path, content reference, mode) and may be put in any order.
+ * Sorting into git tree order happens once when the tree is written, and nested trees are formatted directly from
+ * the sorted array without intermediate Dir objects. A path put twice keeps the last content.
+ * @author yohei224
+ */
+public class TreeBuilder {
+
+  private byte[][] paths;
+  private Object[] contents;
+  private int[] modes;
+  private int size;
+
+  public TreeBuilder() {
+    this(16);
+  }
+
+  /**
+   * Constructor
+   * @param expectedSize number of files expected
+   */
+  public TreeBuilder(int expectedSize) {
+    int capacity = Math.max(expectedSize, 1);
+    this.paths = new byte[capacity][];
+    this.contents = new Object[capacity];
+    this.modes = new int[capacity];
+  }
+
+  /**
+   * Returns number of entries put, including overwritten ones.
+   * @return
+   */
+  public int size() {
+    return this.size;
+  }
+
+  public TreeBuilder put(String path, byte[] content) {
+    return this.add(path, content, FileMode.REGULAR_FILE);
+  }
+
+  public TreeBuilder put(String path, Blob blob) {
+    return this.add(path, blob, FileMode.REGULAR_FILE);
+  }
+
+  /**
+   * Put blob already stored in repository.
+   * @param path
+   * @param blobId
+   * @return
+   */
+  public TreeBuilder put(String path, ObjectId blobId) {
+    return this.put(path, blobId, FileMode.REGULAR_FILE);
+  }
+
+  /**
+   * Put blob already stored in repository.
+   * @param path
+   * @param blobId
+   * @param mode REGULAR_FILE, EXECUTABLE_FILE or SYMLINK
+   * @return
+   */
+  public TreeBuilder put(String path, ObjectId blobId, FileMode mode) {
+    return this.add(path, blobId.copy(), mode);
+  }
+
+  private TreeBuilder add(String path, Object content, FileMode mode) {
+    if (content == null) {
+      throw new IllegalArgumentException("Content of " + path + " is null.");
+    }
+    if (mode != FileMode.REGULAR_FILE && mode != FileMode.EXECUTABLE_FILE && mode != FileMode.SYMLINK) {
+      throw new IllegalArgumentException("Unsupported mode " + mode + " of " + path);
+    }
+    if (this.size == this.paths.length) {
+      int capacity = this.size * 2;
+      this.paths = Arrays.copyOf(this.paths, capacity);
+      this.contents = Arrays.copyOf(this.contents, capacity);
+      this.modes = Arrays.copyOf(this.modes, capacity);
+    }
+    this.paths[this.size] = normalize(path);
+    this.contents[this.size] = content;
+    this.modes[this.size] = mode.getBits();
+    this.size++;
+    return this;
+  }
+
+  private static byte[] normalize(String path) {
+    String p = path.startsWith("/") ? path.substring(1) : path;
+    if (p.isEmpty() || p.endsWith("/")) {
+      throw new IllegalArgumentException("Invalid path: " + path);
+    }
+    for (String name : p.split("/", -1)) {
+      if (name.isEmpty() || name.equals(".") || name.equals("..") || name.equals(Constants.DOT_GIT)) {
+        throw new IllegalArgumentException("Invalid path: " + path);
+      }
+    }
+    return p.getBytes(StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Insert blobs and trees, and returns id of root tree.
+   * Passing an inserter which only hashes computes the id without writing anything.
+   * @param inserter
+   * @return
+   * @throws IOException
+   */
+  ObjectId writeTree(ObjectInserter inserter) throws IOException {
+    int[] order = this.sortedOrder();
+    return this.writeTree(inserter, order, 0, order.length, 0);
+  }
+
+  private ObjectId writeTree(ObjectInserter inserter, int[] order, int lo, int hi, int offset) throws IOException {
+    TreeFormatter formatter = new TreeFormatter();
+    Set<String> fileNames = null;
+
+    int i = lo;
+    while (i < hi) {
+      int index = order[i];
+      byte[] path = this.paths[index];
+      int slash = indexOf(path, '/', offset);
+
+      if (slash < 0) {
+        ObjectId blobId = this.insertBlob(inserter, index);
+        formatter.append(path, offset, path.length - offset, FileMode.fromBits(this.modes[index]), blobId);
+        if (fileNames == null) {
+          fileNames = new HashSet<String>();
+        }
+        fileNames.add(new String(path, offset, path.length - offset, StandardCharsets.UTF_8));
+        i++;
+        continue;
+      }
+
+      String name = new String(path, offset, slash - offset, StandardCharsets.UTF_8);
+      if (fileNames != null && fileNames.contains(name)) {
+        throw new IllegalArgumentException("Path " + new String(path, 0, slash, StandardCharsets.UTF_8)
+            + " is both a file and a directory.");
+      }
+
+      int j = i + 1;
+      while (j < hi && startsWith(this.paths[order[j]], path, slash + 1)) {
+        j++;
+      }
+      ObjectId treeId = this.writeTree(inserter, order, i, j, slash + 1);
+      formatter.append(path, offset, slash - offset, FileMode.TREE, treeId);
+      i = j;
+    }
+
+    return inserter.insert(formatter);
+  }
+
+  private ObjectId insertBlob(ObjectInserter inserter, int index) throws IOException {
+    Object content = this.contents[index];
+    if (content instanceof ObjectId) {
+      return (ObjectId) content;
+    }
+    if (content instanceof byte[]) {
+      return inserter.insert(Constants.OBJ_BLOB, (byte[]) content);
+    }
+    Blob blob = (Blob) content;
+    return inserter.insert(Constants.OBJ_BLOB, blob.length(), blob.inputStream());
+  }
+
+  /**
+   * Returns indices sorted by path bytes, which equals git tree order, dropping all but the last of same path.
+   */
+  private int[] sortedOrder() {
+    int[] order = new int[this.size];
+    for (int i = 0; i < order.length; i++) {
+      order[i] = i;
+    }
+    this.mergeSort(order, new int[order.length], 0, order.length);
+
+    int n = 0;
+    for (int i = 0; i < order.length; i++) {
+      if (i + 1 < order.length && compare(this.paths[order[i]], this.paths[order[i + 1]]) == 0) {
+        continue;
+      }
+      order[n++] = order[i];
+    }
+    return n == order.length ? order : Arrays.copyOf(order, n);
+  }
+
+  /** Stable, so that the last of same paths stays last. */
+  private void mergeSort(int[] a, int[] tmp, int lo, int hi) {
+    if (hi - lo < 2) {
+      return;
+    }
+    int mid = (lo + hi) >>> 1;
+    this.mergeSort(a, tmp, lo, mid);
+    this.mergeSort(a, tmp, mid, hi);
+    if (compare(this.paths[a[mid - 1]], this.paths[a[mid]]) <= 0) {
+      return;
+    }
+    System.arraycopy(a, lo, tmp, lo, hi - lo);
+    int i = lo;
+    int j = mid;
+    for (int k = lo; k < hi; k++) {
+      if (j >= hi || (i < mid && compare(this.paths[tmp[i]], this.paths[tmp[j]]) <= 0)) {
+        a[k] = tmp[i++];
+      } else {
+        a[k] = tmp[j++];
+      }
+    }
+  }
+
+  /** Unsigned byte-wise order of paths, which is git tree order when names of trees are followed by '/'. */
+  static final Comparator<byte[]> PATH_ORDER = new Comparator<byte[]>() {
+    @Override
+    public int compare(byte[] a, byte[] b) {
+      return TreeBuilder.compare(a, b);
+    }
+  };
+
+  private static int compare(byte[] a, byte[] b) {
+    int n = Math.min(a.length, b.length);
+    for (int i = 0; i < n; i++) {
+      int c = (a[i] & 0xFF) - (b[i] & 0xFF);
+      if (c != 0) {
+        return c;
+      }
+    }
+    return a.length - b.length;
+  }
+
+  private static int indexOf(byte[] path, char c, int from) {
+    for (int i = from; i < path.length; i++) {
+      if (path[i] == c) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static boolean startsWith(byte[] path, byte[] prefix, int length) {
+    if (path.length < length) {
+      return false;
+    }
+    for (int i = 0; i < length; i++) {
+      if (path[i] != prefix[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+}
@@ -0,0 +1,428 @@
+package glitch;
+
+import static org.eclipse.jgit.lib.RefDatabase.ALL;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.jgit.errors.IncorrectObjectTypeException;
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectChecker;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectLoader;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.ProgressMonitor;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevTag;
+import org.eclipse.jgit.treewalk.CanonicalTreeParser;
+
+import glitch.VerifyResult.Kind;
+import glitch.VerifyResult.Problem;
+
+/**
+ * Checks objects reachable from all refs.
+ * Commits and tags are walked on the calling thread, handing each root tree to a pool where trees and blobs are
+ * checked in parallel, each object once. Every object is read, hashed again and checked by ObjectChecker.
+ * Paths referencing broken objects are collected by a second walk of the trees, only if something is broken.
+ * @author yohei224
+ */
+class Verifier {
+
+  /** Maximum number of paths reported per problem */
+  private static final int MAX_PATHS = 16;
+
+  private final Repository repo;
+  private final LargeObjectStore store;
+
+  private final Set<ObjectId> seen = Collections.newSetFromMap(new ConcurrentHashMap<ObjectId, Boolean>());
+  private final Map<ObjectId, Broken> broken = new ConcurrentHashMap<ObjectId, Broken>();
+  private final AtomicLong checked = new AtomicLong();
+
+  /** Number of tasks submitted but not finished, guarded by itself when waiting */
+  private final AtomicLong tasks = new AtomicLong();
+
+  /** Commits and their root trees, for collecting paths */
+  private final List<ObjectId[]> roots = new ArrayList<ObjectId[]>();
+
+  private final Queue<Worker> workers = new ConcurrentLinkedQueue<Worker>();
+  private final ThreadLocal<Worker> worker = new ThreadLocal<Worker>() {
+    @Override
+    protected Worker initialValue() {
+      Worker worker = new Worker(Verifier.this.repo.newObjectReader());
+      Verifier.this.workers.add(worker);
+      return worker;
+    }
+  };
+
+  Verifier(Repository repo, LargeObjectStore store) {
+    this.repo = repo;
+    this.store = store;
+  }
+
+  /**
+   * Check all objects.
+   * @param monitor
+   * @return
+   * @throws IOException
+   */
+  VerifyResult run(ProgressMonitor monitor) throws IOException {
+    ForkJoinPool pool = new ForkJoinPool();
+    try {
+      monitor.beginTask("Checking objects", ProgressMonitor.UNKNOWN);
+      long reported = this.walkCommits(pool, monitor);
+      while (!this.awaitTasks(100)) {
+        reported = this.report(monitor, reported);
+      }
+      this.report(monitor, reported);
+      monitor.endTask();
+
+      if (!this.broken.isEmpty()) {
+        monitor.beginTask("Finding paths", this.roots.size());
+        this.collectPaths(monitor);
+        monitor.endTask();
+      }
+    } finally {
+      pool.shutdownNow();
+      for (Worker worker : this.workers) {
+        worker.reader.close();
+      }
+    }
+
+    List<Problem> problems = new ArrayList<Problem>();
+    for (Broken b : this.broken.values()) {
+      problems.add(new Problem(b.objectId, b.type, b.kind, b.message, new ArrayList<String>(b.paths)));
+    }
+    return new VerifyResult(this.checked.get(), problems);
+  }
+
+  private boolean awaitTasks(long millis) throws InterruptedIOException {
+    synchronized (this.tasks) {
+      if (this.tasks.get() > 0) {
+        try {
+          this.tasks.wait(millis);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException();
+        }
+      }
+      return this.tasks.get() == 0;
+    }
+  }
+
+  private void taskDone() {
+    if (this.tasks.decrementAndGet() == 0) {
+      synchronized (this.tasks) {
+        this.tasks.notifyAll();
+      }
+    }
+  }
+
+  private long report(ProgressMonitor monitor, long reported) throws IOException {
+    if (monitor.isCancelled()) {
+      throw new InterruptedIOException("Verification cancelled.");
+    }
+    long now = this.checked.get();
+    if (now > reported) {
+      monitor.update((int) Math.min(Integer.MAX_VALUE, now - reported));
+    }
+    return now;
+  }
+
+  /**
+   * Walk commits and tags from all refs, submitting root trees to pool.
+   */
+  private long walkCommits(ForkJoinPool pool, ProgressMonitor monitor) throws IOException {
+    Deque<Object[]> pending = new ArrayDeque<Object[]>();
+    for (Ref ref : this.repo.getRefDatabase().getRefs(ALL).values()) {
+      if (ref.getObjectId() != null) {
+        pending.push(new Object[] { ref.getObjectId(), ref.getName(), Constants.OBJ_BAD });
+      }
+    }
+
+    long reported = 0;
+    try (ObjectReader reader = this.repo.newObjectReader()) {
+      Worker worker = new Worker(reader);
+      while (!pending.isEmpty()) {
+        Object[] next = pending.pop();
+        ObjectId id = (ObjectId) next[0];
+        String referrer = (String) next[1];
+        int expected = (Integer) next[2];
+        if (!this.seen.add(id)) {
+          this.addPath(id, referrer);
+          continue;
+        }
+
+        int type = expected;
+        if (type == Constants.OBJ_BAD) {
+          try {
+            type = reader.open(id).getType();
+          } catch (MissingObjectException e) {
+            this.problem(id, Constants.OBJ_COMMIT, Kind.MISSING, "missing", referrer);
+            continue;
+          } catch (IOException e) {
+            this.problem(id, Constants.OBJ_COMMIT, Kind.CORRUPT, String.valueOf(e.getMessage()), referrer);
+            continue;
+          }
+        }
+        if (type == Constants.OBJ_TREE) {
+          this.tasks.incrementAndGet();
+          pool.execute(new TreeTask(id, referrer, ""));
+          continue;
+        }
+        if (type == Constants.OBJ_BLOB) {
+          this.tasks.incrementAndGet();
+          pool.execute(new BlobTask(id, referrer));
+          continue;
+        }
+
+        byte[] raw = worker.read(id, type, referrer);
+        if (raw == null) {
+          continue;
+        }
+        if (type == Constants.OBJ_TAG) {
+          RevTag tag = RevTag.parse(raw);
+          pending.push(new Object[] { tag.getObject().copy(), tag.getTagName(), tag.getObject().getType() });
+        } else {
+          RevCommit commit = RevCommit.parse(raw);
+          ObjectId treeId = commit.getTree().copy();
+          this.roots.add(new ObjectId[] { id, treeId });
+          if (this.seen.add(treeId)) {
+            this.tasks.incrementAndGet();
+            pool.execute(new TreeTask(treeId, id.name() + ":", ""));
+          }
+          for (RevCommit parent : commit.getParents()) {
+            pending.push(new Object[] { parent.copy(), id.name(), Constants.OBJ_COMMIT });
+          }
+        }
+        reported = this.report(monitor, reported);
+      }
+    }
+    return reported;
+  }
+
+  /** Check of a tree, forking checks of its entries. */
+  private class TreeTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final ObjectId id;
+    private final String referrer;
+    private final String prefix;
+
+    /**
+     * @param id
+     * @param referrer commit:path of this tree
+     * @param prefix path of this tree followed by '/', empty for root
+     */
+    TreeTask(ObjectId id, String referrer, String prefix) {
+      this.id = id;
+      this.referrer = referrer;
+      this.prefix = prefix;
+    }
+
+    @Override
+    protected void compute() {
+      try {
+        this.check();
+      } finally {
+        Verifier.this.taskDone();
+      }
+    }
+
+    private void check() {
+      byte[] raw = Verifier.this.worker.get().read(this.id, Constants.OBJ_TREE, this.referrer);
+      if (raw == null) {
+        return;
+      }
+      String commitPath = this.referrer.substring(0, this.referrer.indexOf(':') + 1);
+      CanonicalTreeParser parser = new CanonicalTreeParser();
+      parser.reset(raw);
+      for (; !parser.eof(); parser.next()) {
+        FileMode mode = parser.getEntryFileMode();
+        if (mode == FileMode.GITLINK) {
+          continue;
+        }
+        ObjectId entryId = parser.getEntryObjectId();
+        String path = this.prefix + parser.getEntryPathString();
+        if (!Verifier.this.seen.add(entryId)) {
+          continue;
+        }
+        Verifier.this.tasks.incrementAndGet();
+        if (mode == FileMode.TREE) {
+          new TreeTask(entryId, commitPath + path, path + "/").fork();
+        } else {
+          new BlobTask(entryId, commitPath + path).fork();
+        }
+      }
+    }
+  }
+
+  /** Check of a blob. */
+  private class BlobTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final ObjectId id;
+    private final String referrer;
+
+    BlobTask(ObjectId id, String referrer) {
+      this.id = id;
+      this.referrer = referrer;
+    }
+
+    @Override
+    protected void compute() {
+      try {
+        Verifier.this.worker.get().checkBlob(this.id, this.referrer);
+      } finally {
+        Verifier.this.taskDone();
+      }
+    }
+  }
+
+  /** Reader and checker of a thread. */
+  private class Worker {
+    final ObjectReader reader;
+    final ObjectChecker checker = new ObjectChecker();
+    final ObjectInserter.Formatter formatter = new ObjectInserter.Formatter();
+
+    Worker(ObjectReader reader) {
+      this.reader = reader;
+    }
+
+    /**
+     * Read and check object, which is not a blob.
+     * @return content, or null if broken
+     */
+    byte[] read(ObjectId id, int type, String referrer) {
+      try {
+        byte[] raw = this.reader.open(id, type).getCachedBytes(Integer.MAX_VALUE);
+        Verifier.this.checked.incrementAndGet();
+        if (!id.equals(this.formatter.idFor(type, raw))) {
+          Verifier.this.problem(id, type, Kind.CORRUPT, "content does not match id", referrer);
+          return null;
+        }
+        this.checker.check(id, type, raw);
+        return raw;
+      } catch (MissingObjectException e) {
+        Verifier.this.problem(id, type, Kind.MISSING, "missing", referrer);
+      } catch (IncorrectObjectTypeException e) {
+        Verifier.this.problem(id, type, Kind.CORRUPT, "not a " + Constants.typeString(type), referrer);
+      } catch (IOException | RuntimeException e) {
+        Verifier.this.problem(id, type, Kind.CORRUPT, String.valueOf(e.getMessage()), referrer);
+      }
+      return null;
+    }
+
+    void checkBlob(ObjectId id, String referrer) {
+      try {
+        ObjectLoader loader = this.reader.open(id, Constants.OBJ_BLOB);
+        Verifier.this.checked.incrementAndGet();
+        try (InputStream in = loader.openStream()) {
+          if (!id.equals(this.formatter.idFor(Constants.OBJ_BLOB, loader.getSize(), in))) {
+            Verifier.this.problem(id, Constants.OBJ_BLOB, Kind.CORRUPT, "content does not match id", referrer);
+            return;
+          }
+        }
+        if (Verifier.this.store != null) {
+          Verifier.this.store.verify(id, loader);
+        }
+      } catch (MissingObjectException e) {
+        Verifier.this.problem(id, Constants.OBJ_BLOB, Kind.MISSING, "missing", referrer);
+      } catch (FileNotFoundException e) {
+        Verifier.this.problem(id, Constants.OBJ_BLOB, Kind.MISSING, e.getMessage(), referrer);
+      } catch (IncorrectObjectTypeException e) {
+        Verifier.this.problem(id, Constants.OBJ_BLOB, Kind.CORRUPT, "not a blob", referrer);
+      } catch (IOException | RuntimeException e) {
+        Verifier.this.problem(id, Constants.OBJ_BLOB, Kind.CORRUPT, String.valueOf(e.getMessage()), referrer);
+      }
+    }
+  }
+
+  private void problem(ObjectId id, int type, Kind kind, String message, String referrer) {
+    Broken b = new Broken(id.copy(), type, kind, message);
+    b.paths.add(referrer);
+    this.broken.put(b.objectId, b);
+  }
+
+  private void addPath(ObjectId id, String path) {
+    Broken b = this.broken.get(id);
+    if (b != null) {
+      synchronized (b) {
+        if (b.paths.size() < MAX_PATHS) {
+          b.paths.add(path);
+        }
+      }
+    }
+  }
+
+  /**
+   * Walk trees again, recording all paths of broken trees and blobs, but only once per distinct tree.
+   */
+  private void collectPaths(ProgressMonitor monitor) throws IOException {
+    Set<ObjectId> walked = new HashSet<ObjectId>();
+    try (ObjectReader reader = this.repo.newObjectReader()) {
+      for (ObjectId[] root : this.roots) {
+        Deque<Object[]> trees = new ArrayDeque<Object[]>();
+        trees.push(new Object[] { root[1], "" });
+        while (!trees.isEmpty()) {
+          Object[] tree = trees.pop();
+          ObjectId treeId = (ObjectId) tree[0];
+          if (this.broken.containsKey(treeId) || !walked.add(treeId)) {
+            continue;
+          }
+          CanonicalTreeParser parser = new CanonicalTreeParser();
+          parser.reset(reader.open(treeId, Constants.OBJ_TREE).getCachedBytes(Integer.MAX_VALUE));
+          for (; !parser.eof(); parser.next()) {
+            ObjectId entryId = parser.getEntryObjectId();
+            String path = tree[1] + parser.getEntryPathString();
+            if (this.broken.containsKey(entryId)) {
+              this.addPath(entryId, root[0].name() + ":" + path);
+            }
+            if (parser.getEntryFileMode() == FileMode.TREE) {
+              trees.push(new Object[] { entryId, path + "/" });
+            }
+          }
+        }
+        monitor.update(1);
+      }
+    }
+  }
+
+  /** Problem being found, whose paths are added later. */
+  private static class Broken {
+    final ObjectId objectId;
+    final int type;
+    final Kind kind;
+    final String message;
+    final Set<String> paths = new LinkedHashSet<String>();
+
+    Broken(ObjectId objectId, int type, Kind kind, String message) {
+      this.objectId = objectId;
+      this.type = type;
+      this.kind = kind;
+      this.message = message;
+    }
+  }
+
+}
@@ -0,0 +1,82 @@
+package glitch;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+
+/**
+ * Result of GitRepository.verify.
+ * @author yohei224
+ */
+public class VerifyResult {
+
+  /** Kind of problem */
+  public enum Kind {
+    MISSING, CORRUPT
+  }
+
+  /** Missing or corrupt object. */
+  public static class Problem {
+
+    /** id of object */
+    public final ObjectId objectId;
+
+    /** type of object expected by its referrer, one of Constants.OBJ_* */
+    public final int type;
+
+    /** kind of problem */
+    public final Kind kind;
+
+    /** description of problem */
+    public final String message;
+
+    /** referrers, ref names, commit ids, or commit:path of trees and blobs */
+    public final List<String> paths;
+
+    Problem(ObjectId objectId, int type, Kind kind, String message, List<String> paths) {
+      this.objectId = objectId;
+      this.type = type;
+      this.kind = kind;
+      this.message = message;
+      this.paths = Collections.unmodifiableList(paths);
+    }
+
+    @Override
+    public String toString() {
+      return this.kind + " " + Constants.typeString(this.type) + " " + this.objectId.name() + ": " + this.message
+          + " " + this.paths;
+    }
+  }
+
+  /** number of objects checked */
+  public final long objectCount;
+
+  /** problems found */
+  public final List<Problem> problems;
+
+  VerifyResult(long objectCount, List<Problem> problems) {
+    this.objectCount = objectCount;
+    this.problems = Collections.unmodifiableList(problems);
+  }
+
+  /**
+   * Returns is no problem found.
+   * @return
+   */
+  public boolean isOk() {
+    return this.problems.isEmpty();
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    sb.append(this.objectCount).append(" objects, ").append(this.problems.size()).append(" problems");
+    for (Problem problem : this.problems) {
+      sb.append('\n').append(problem);
+    }
+    return sb.toString();
+  }
+
+}
@@ -0,0 +1,207 @@
+package glitch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import glitch.GitRepository.Branch;
+import glitch.GitRepository.Commit;
+import glitch.GitRepository.Dir;
+import glitch.GitRepository.Ident;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.junit.Test;
+
+/**
+ * Load test of concurrent writers and readers.
+ * Configured by system properties glitch.stress.(writers|readers|branches|files|fileSize|seconds),
+ * and runnable standalone through main() for longer runs.
+ */
+public class ConcurrencyStressTest {
+
+  private static final Ident IDENT = new Ident("Ident", "Ident@Ident.com");
+
+  final int writers = Integer.getInteger("glitch.stress.writers", 4);
+  final int readers = Integer.getInteger("glitch.stress.readers", 2);
+  final int branches = Integer.getInteger("glitch.stress.branches", 2);
+  final int files = Integer.getInteger("glitch.stress.files", 10);
+  final int fileSize = Integer.getInteger("glitch.stress.fileSize", 256);
+  final int seconds = Integer.getInteger("glitch.stress.seconds", 3);
+
+  public static void main(String[] args) throws Exception {
+    new ConcurrencyStressTest().noAcknowledgedCommitIsLost();
+  }
+
+  @Test
+  public void noAcknowledgedCommitIsLost() throws Exception {
+    File dir = new File(System.getProperty("java.io.tmpdir"), "concurrencyStress.git");
+    org.apache.commons.io.FileUtils.deleteDirectory(dir);
+    dir.mkdir();
+
+    final GitRepository repo = GitRepository.getInstance(dir);
+    final List<Branch> branchList = new ArrayList<Branch>();
+    for (int i = 0; i < this.branches; i++) {
+      repo.initialize("branch" + i, "initial commit", IDENT);
+      branchList.add(repo.branch("branch" + i));
+    }
+
+    final List<ConcurrentLinkedQueue<ObjectId>> acknowledged = new ArrayList<ConcurrentLinkedQueue<ObjectId>>();
+    for (int i = 0; i < this.branches; i++) {
+      acknowledged.add(new ConcurrentLinkedQueue<ObjectId>());
+    }
+    final long[][] writeLatencies = new long[this.writers][];
+    final long[][] readLatencies = new long[this.readers][];
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    final long deadline = System.nanoTime() + this.seconds * 1000000000L;
+    final CountDownLatch done = new CountDownLatch(this.writers + this.readers);
+
+    for (int w = 0; w < this.writers; w++) {
+      final int writer = w;
+      new Thread(new Runnable() {
+        @Override
+        public void run() {
+          Random random = new Random(writer);
+          LatencyRecorder recorder = new LatencyRecorder();
+          try {
+            for (int seq = 0; System.nanoTime() < deadline && failure.get() == null; seq++) {
+              int branch = random.nextInt(branchList.size());
+              Dir root = new Dir();
+              for (int f = 0; f < ConcurrencyStressTest.this.files; f++) {
+                byte[] content = new byte[ConcurrencyStressTest.this.fileSize];
+                random.nextBytes(content);
+                root.put("file" + f, content);
+              }
+              root.put("writer", ("writer" + writer + "-" + seq).getBytes());
+
+              long start = System.nanoTime();
+              Commit commit = branchList.get(branch).commit(root, "writer" + writer + "-" + seq, IDENT);
+              recorder.record(System.nanoTime() - start);
+              acknowledged.get(branch).add(commit.getObjectId());
+            }
+          } catch (Throwable e) {
+            failure.compareAndSet(null, e);
+          } finally {
+            writeLatencies[writer] = recorder.toArray();
+            done.countDown();
+          }
+        }
+      }).start();
+    }
+
+    for (int r = 0; r < this.readers; r++) {
+      final int reader = r;
+      new Thread(new Runnable() {
+        @Override
+        public void run() {
+          Random random = new Random(-reader);
+          LatencyRecorder recorder = new LatencyRecorder();
+          byte[] buf = new byte[8192];
+          try {
+            while (System.nanoTime() < deadline && failure.get() == null) {
+              Branch branch = branchList.get(random.nextInt(branchList.size()));
+              long start = System.nanoTime();
+              Commit head = branch.head();
+              if (head.getParents().size() > 0) {
+                try (InputStream in = head.getStream("writer")) {
+                  while (in.read(buf) > 0) {
+                  }
+                }
+              }
+              recorder.record(System.nanoTime() - start);
+            }
+          } catch (Throwable e) {
+            failure.compareAndSet(null, e);
+          } finally {
+            readLatencies[reader] = recorder.toArray();
+            done.countDown();
+          }
+        }
+      }).start();
+    }
+
+    done.await();
+    if (failure.get() != null) {
+      throw new AssertionError(failure.get());
+    }
+
+    int missing = 0;
+    int total = 0;
+    for (int i = 0; i < this.branches; i++) {
+      Set<ObjectId> history = new HashSet<ObjectId>();
+      for (Commit commit : branchList.get(i).listCommits()) {
+        history.add(commit.getObjectId());
+      }
+      for (ObjectId id : acknowledged.get(i)) {
+        total++;
+        if (!history.contains(id)) {
+          missing++;
+        }
+      }
+      // each acknowledged commit plus the initial one, nothing else.
+      assertEquals(acknowledged.get(i).size() + 1, history.size());
+    }
+
+    report("write", writeLatencies, this.seconds);
+    report("read", readLatencies, this.seconds);
+    System.out.printf("acknowledged commits: %d, missing: %d%n", total, missing);
+
+    assertEquals(0, missing);
+    assertTrue(total > 0);
+
+    repo.close();
+    org.apache.commons.io.FileUtils.deleteDirectory(dir);
+  }
+
+  private static void report(String name, long[][] latencies, int seconds) {
+    int count = 0;
+    for (long[] l : latencies) {
+      count += l.length;
+    }
+    long[] all = new long[count];
+    int pos = 0;
+    for (long[] l : latencies) {
+      System.arraycopy(l, 0, all, pos, l.length);
+      pos += l.length;
+    }
+    Arrays.sort(all);
+    System.out.printf("%s: %d ops, %.1f ops/s, p50 %.2f ms, p95 %.2f ms, p99 %.2f ms, max %.2f ms%n", name, count,
+        (double) count / seconds, percentile(all, 0.50), percentile(all, 0.95), percentile(all, 0.99),
+        percentile(all, 1.0));
+  }
+
+  private static double percentile(long[] sorted, double quantile) {
+    if (sorted.length == 0) {
+      return 0d;
+    }
+    int index = (int) Math.min(sorted.length - 1, Math.max(0, Math.ceil(quantile * sorted.length) - 1));
+    return sorted[index] / 1000000d;
+  }
+
+  /** Growable array of latencies, confined to one thread. */
+  private static class LatencyRecorder {
+    private long[] values = new long[1024];
+    private int size;
+
+    void record(long nanos) {
+      if (this.size == this.values.length) {
+        this.values = Arrays.copyOf(this.values, this.size * 2);
+      }
+      this.values[this.size++] = nanos;
+    }
+
+    long[] toArray() {
+      return Arrays.copyOf(this.values, this.size);
+    }
+  }
+
+}
@@ -2,22 +2,56 @@ package glitch;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import glitch.GitRepository.Branch;
+import glitch.GitRepository.Commit;
 import glitch.GitRepository.Dir;
 import glitch.GitRepository.Ident;
 import glitch.GitRepository.Tag;
+import glitch.RepositoryListener.Operation;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.channels.Channels;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
 
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.RefUpdate.Result;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.TreeFormatter;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.eclipse.jgit.transport.URIish;
 import org.junit.Test;
 
 public class RepositoryTest {
@@ -228,6 +262,800 @@ public class RepositoryTest {
     cleanUp(repo);
   }
   
+  @Test
+  public void metrics() throws Exception {
+    GitRepository repo = prepareGit("metrics.git").initialize("README.md", "initial".getBytes(), "initial commit", ident);
+    RepositoryMetrics metrics = new RepositoryMetrics();
+    repo.addListener(metrics);
+    
+    Branch master  = repo.branch("master");
+    master.commit(new Dir().put("README.md", "first".getBytes()).put(new Dir("child").put("1.md", "1".getBytes())), "first commit", ident);
+    streamToString(master.head().getStream("README.md"));
+    master.listCommits();
+    
+    assertEquals(1, metrics.histogram(Operation.COMMIT).count());
+    assertEquals(1, metrics.histogram(Operation.GET_STREAM).count());
+    assertEquals(1, metrics.histogram(Operation.LIST_COMMITS).count());
+    // 2 blobs, 2 trees and 1 commit
+    assertEquals(5, metrics.getObjectsInserted());
+    assertEquals(1, metrics.getObjectsRead());
+    assertEquals(Long.valueOf(1), metrics.getRefUpdateResults().get(Result.FAST_FORWARD.name()));
+    
+    metrics.registerMBean("metrics.git");
+    metrics.unregisterMBean();
+    
+    // clean up.
+    cleanUp(repo);
+  }
+  
+  @Test
+  public void inMemory() throws Exception {
+    GitRepository memory = GitRepository.getInMemoryInstance("inMemory").initialize("README.md", "initial".getBytes(), "initial commit", ident);
+    
+    Branch master  = memory.branch("master");
+    Branch develop = master.createNewBranch("develop");
+    develop.commit(new Dir().put("README.md", "updated".getBytes()).put(new Dir("child").put("1.md", "1".getBytes())), "test commit", ident);
+    develop.mergeTo(master, ident);
+    master.head().addTag("AAAA", "AAAA", ident);
+    
+    assertTrue(memory.isInMemory());
+    assertEquals(streamToString(master.head().getStream("child/1.md")), "1");
+    assertEquals(new HashSet<String>(Arrays.asList("README.md", "child/1.md")), new HashSet<String>(master.head().listFiles()));
+    assertEquals(1, memory.listTags().size());
+    
+    GitRepository repo = prepareGit("inMemory.git").initialize("README.md", "initial".getBytes(), "initial commit", ident);
+    Branch flushed = develop.flushTo(repo);
+    
+    assertEquals(develop.head().getObjectId(), flushed.head().getObjectId());
+    assertEquals(streamToString(flushed.head().getStream("README.md")), "updated");
+    assertEquals(1, new File(repo.getDirectory(), "objects/pack").list(new java.io.FilenameFilter() {
+      @Override
+      public boolean accept(File dir, String name) {
+        return name.endsWith(".pack");
+      }
+    }).length);
+    
+    memory.close();
+    // clean up.
+    cleanUp(repo);
+  }
+  
+  @Test
+  public void exportArchive() throws Exception {
+    GitRepository repo = prepareGit("exportArchive.git").initialize("README.md", "initial".getBytes(), "initial commit", ident);
+    
+    Branch master  = repo.branch("master");
+    Dir root = new Dir().put("README.md", "readme".getBytes());
+    root.put(new Dir("src").put("1.md", "1".getBytes()).put("2.md", "2".getBytes()));
+    Commit head = master.commit(root, "test commit", ident);
+    
+    ByteArrayOutputStream zip = new ByteArrayOutputStream();
+    head.exportArchive(ArchiveFormat.ZIP, zip, "src", 2);
+    
+    Map<String, String> entries = new HashMap<String, String>();
+    try (ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(zip.toByteArray()))) {
+      for (ZipEntry entry; (entry = in.getNextEntry()) != null;) {
+        entries.put(entry.getName(), new String(IOUtils.toByteArray(in)));
+      }
+    }
+    Map<String, String> expected = new HashMap<String, String>();
+    expected.put("src/1.md", "1");
+    expected.put("src/2.md", "2");
+    assertEquals(expected, entries);
+    
+    ByteArrayOutputStream tar = new ByteArrayOutputStream();
+    head.exportArchive(ArchiveFormat.TAR, Channels.newChannel(tar), null);
+    byte[] bytes = tar.toByteArray();
+    // 3 entries of header and one data block, and 2 blocks of trailer
+    assertEquals(512 * 8, bytes.length);
+    assertEquals("README.md", new String(bytes, 0, 9));
+    assertEquals("readme", new String(bytes, 512, 6));
+    
+    // clean up.
+    cleanUp(repo);
+  }
+  
+  @Test
+  public void commitTreeBuilder() throws Exception {
+    GitRepository repo = prepareGit("commitTreeBuilder.git").initialize("README.md", "initial".getBytes(), "initial commit", ident);
+    
+    Branch master  = repo.branch("master");
+    Branch develop = master.createNewBranch("develop");
+    
+    TreeBuilder tree = new TreeBuilder()
+      .put("child1/child1-child1/1.md", "1_1__1".getBytes())
+      .put("README.md", "overwritten".getBytes())
+      .put("child1.md", "1".getBytes())
+      .put("child1/1.md", "1__1".getBytes())
+      .put("README.md", "readme".getBytes());
+    Commit fromBuilder = master.commit(tree, "builder commit", ident);
+    
+    Dir root = new Dir().put("README.md", "readme".getBytes()).put("child1.md", "1".getBytes());
+    root.put(new Dir("child1").put("1.md", "1__1".getBytes()).put(new Dir("child1-child1").put("1.md", "1_1__1".getBytes())));
+    Commit fromDir = develop.commit(root, "dir commit", ident);
+    
+    assertEquals(fromDir.getTreeId(), fromBuilder.getTreeId());
+    assertEquals(streamToString(fromBuilder.getStream("child1/child1-child1/1.md")), "1_1__1");
+    
+    // clean up.
+    cleanUp(repo);
+  }
+  
+  @Test
+  public void skipUnchangedCommit() throws Exception {
+    GitRepository repo = prepareGit("skipUnchangedCommit.git").initialize("README.md", "initial".getBytes(), "initial commit", ident);
+    
+    Branch master  = repo.branch("master");
+    Commit first = master.commit(new Dir().put("README.md", "first".getBytes()), "first commit", ident);
+    
+    assertEquals(first.getTreeId(), repo.treeId(new Dir().put("README.md", "first".getBytes())));
+    assertEquals(first.getTreeId(), repo.treeId(new TreeBuilder().put("README.md", "first".getBytes())));
+    
+    Commit same = master.commit(new Dir().put("README.md", "first".getBytes()), "same commit", ident, true);
+    assertEquals(first.getObjectId(), same.getObjectId());
+    assertEquals(2, master.listCommits().size());
+    
+    Commit changed = master.commit(new TreeBuilder().put("README.md", "second".getBytes()), "second commit", ident, true);
+    assertEquals(first.getObjectId(), changed.getParents().get(0).getObjectId());
+    assertEquals(3, master.listCommits().size());
+    
+    // clean up.
+    cleanUp(repo);
+  }
+  
+  @Test
+  public void materialize() throws Exception {
+    GitRepository repo = prepareGit("materialize.git").initialize("README.md", "initial".getBytes(), "initial commit", ident);
+    File target = parepareDirectory("materialize.work");
+    
+    Branch master  = repo.branch("master");
+    Commit first = master.commit(new TreeBuilder()
+      .put("README.md", "first".getBytes())
+      .put("a/1.md", "1".getBytes())
+      .put("a/2.md", "2".getBytes())
+      .put("b", "b".getBytes()), "first commit", ident);
+    assertEquals(4, first.materialize(target.toPath()));
+    
+    Commit second = master.commit(new TreeBuilder()
+      .put("README.md", "first".getBytes())
+      .put("a", "a".getBytes())
+      .put("b/1.md", "b1".getBytes()), "second commit", ident);
+    // a/1.md, a/2.md, b deleted and a, b/1.md written
+    assertEquals(5, second.materialize(target.toPath()));
+    
+    assertEquals("first", FileUtils.readFileToString(new File(target, "README.md")));
+    assertEquals("a", FileUtils.readFileToString(new File(target, "a")));
+    assertEquals("b1", FileUtils.readFileToString(new File(target, "b/1.md")));
+    assertEquals(0, second.materialize(target.toPath()));
+    // state is kept in repository, not among files of the commit.
+    assertEquals(3, FileUtils.listFiles(target, null, true).size());
+    
+    // clean up.
+    cleanUp(target);
+    cleanUp(repo);
+  }
+  
+  @Test
+  public void commitFromDirectory() throws Exception {
+    GitRepository repo = prepareGit("commitFromDirectory.git").initialize("README.md", "initial".getBytes(), "initial commit", ident);
+    File source = parepareDirectory("commitFromDirectory.work");
+    RepositoryMetrics metrics = new RepositoryMetrics();
+    repo.addListener(metrics);
+    
+    FileUtils.writeStringToFile(new File(source, "README.md"), "readme");
+    FileUtils.writeStringToFile(new File(source, "a/1.md"), "1");
+    FileUtils.writeStringToFile(new File(source, "a/b/2.md"), "2");
+    Thread.sleep(1000);
+    
+    Branch master  = repo.branch("master");
+    Commit first = master.commitFromDirectory(source.toPath(), "first import", ident);
+    assertEquals(new HashSet<String>(Arrays.asList("README.md", "a/1.md", "a/b/2.md")), new HashSet<String>(first.listFiles()));
+    assertEquals(streamToString(first.getStream("a/b/2.md")), "2");
+    
+    Thread.sleep(1000);
+    FileUtils.writeStringToFile(new File(source, "a/1.md"), "updated");
+    FileUtils.deleteQuietly(new File(source, "a/b"));
+    metrics.reset();
+    Commit second = master.commitFromDirectory(source.toPath(), "second import", ident);
+    
+    assertEquals(new HashSet<String>(Arrays.asList("README.md", "a/1.md")), new HashSet<String>(second.listFiles()));
+    assertEquals(streamToString(second.getStream("a/1.md")), "updated");
+    // README.md written before last import is taken from stat cache.
+    assertEquals(0.5, metrics.cacheHitRate("stat"), 0.0);
+    
+    // clean up.
+    cleanUp(source);
+    cleanUp(repo);
+  }
+  
+  @Test
+  public void commitTreeOrder() throws Exception {
+    GitRepository repo = prepareGit("commitTreeOrder.git").initialize("README.md", "initial".getBytes(), "initial commit", ident);
+    Branch master  = repo.branch("master");
+
+    // directory "a" sorts as "a/", so before file "a0", though "a" < "a0".
+    Dir dir = new Dir()
+      .put("a0", "a0".getBytes())
+      .put(new Dir("a").put("b", "b".getBytes()));
+    ObjectInserter.Formatter hasher = new ObjectInserter.Formatter();
+    TreeFormatter a = new TreeFormatter();
+    a.append("b", FileMode.REGULAR_FILE, hasher.idFor(Constants.OBJ_BLOB, "b".getBytes()));
+    ObjectId aId = hasher.idFor(a);
+    ObjectId a0Id = hasher.idFor(Constants.OBJ_BLOB, "a0".getBytes());
+    TreeFormatter root = new TreeFormatter();
+    root.append("a", FileMode.TREE, aId);
+    root.append("a0", FileMode.REGULAR_FILE, a0Id);
+    Commit commit = master.commit(dir, "tree order commit", ident);
+    assertEquals(hasher.idFor(root), commit.getTreeId());
+    VerifyResult result = repo.verify();
+    assertTrue(result.toString(), result.isOk());
+
+    // a name can not be both.
+    try {
+      master.commit(new Dir()
+        .put("a", "a".getBytes())
+        .put(new Dir("a").put("b", "b".getBytes())), "ambiguous commit", ident);
+      fail();
+    } catch (IllegalArgumentException e) {
+      // expected.
+    }
+    assertEquals(commit.getObjectId(), master.head().getObjectId());
+
+    // head written before in files-first order still counts as unchanged.
+    TreeFormatter legacy = new TreeFormatter();
+    legacy.append("a0", FileMode.REGULAR_FILE, a0Id);
+    legacy.append("a", FileMode.TREE, aId);
+    ObjectId legacyCommitId;
+    try (ObjectInserter inserter = repo.newObjectInserter()) {
+      inserter.insert(a);
+      inserter.insert(Constants.OBJ_BLOB, "a0".getBytes());
+      CommitBuilder builder = new CommitBuilder();
+      builder.setTreeId(inserter.insert(legacy));
+      builder.setParentId(commit.getObjectId());
+      builder.setAuthor(ident.toPersonIdent());
+      builder.setCommitter(ident.toPersonIdent());
+      builder.setMessage("legacy commit");
+      legacyCommitId = inserter.insert(builder);
+      inserter.flush();
+    }
+    try (Repository git = new FileRepositoryBuilder().setGitDir(repo.getDirectory()).build()) {
+      RefUpdate update = git.updateRef("refs/heads/master");
+      update.setNewObjectId(legacyCommitId);
+      assertEquals(Result.FAST_FORWARD, update.update());
+    }
+    assertEquals(legacyCommitId, master.commit(dir, "unchanged commit", ident, true).getObjectId());
+    repo.close();
+
+    // clean up.
+    cleanUp(repo);
+  }
+
+  @Test
+  public void search() throws Exception {
+    GitRepository repo = prepareGit("search.git").initialize("README.md", "initial".getBytes(), "initial commit", ident);
+    
+    Branch master  = repo.branch("master");
+    Commit head = master.commit(new TreeBuilder()
+      .put("README.md", "hello\nworld\n".getBytes())
+      .put("src/1.md", "hello world".getBytes())
+      .put("src/2.md", "hello\nworld\n".getBytes())
+      .put("src/binary", new byte[] { 'w', 'o', 'r', 'l', 'd', 0 }), "test commit", ident);
+    
+    Set<String> matches = new HashSet<String>();
+    try (ContentSearch search = head.search("world", null)) {
+      while (search.hasNext()) {
+        matches.add(search.next().toString());
+      }
+    }
+    assertEquals(new HashSet<String>(Arrays.asList("README.md:2:world", "src/1.md:1:hello world", "src/2.md:2:world")), matches);
+    
+    matches.clear();
+    try (ContentSearch search = head.search(Pattern.compile("^h.*d$"), "src")) {
+      while (search.hasNext()) {
+        matches.add(search.next().path);
+      }
+    }
+    assertEquals(Collections.singleton("src/1.md"), matches);
+    
+    // errors of workers reach the consumer instead of leaving it waiting.
+    char[] line = new char[200000];
+    Arrays.fill(line, 'a');
+    Commit deep = master.commit(new TreeBuilder().put("deep.md", new String(line).getBytes()), "deep commit", ident);
+    try (ContentSearch search = deep.search(Pattern.compile("(a|b)*c"), null)) {
+      search.hasNext();
+      fail();
+    } catch (StackOverflowError e) {
+      // expected.
+    }
+    
+    // clean up.
+    cleanUp(repo);
+  }
+  
+  @Test
+  public void historyIndex() throws Exception {
+    GitRepository repo = prepareGit("historyIndex.git").initialize("README.md", "initial".getBytes(), "initial commit", ident);
+    HistoryIndex index = repo.enableHistoryIndex();
+    assertEquals(1, index.size());
+    
+    Branch master  = repo.branch("master");
+    Branch develop = master.createNewBranch("develop");
+    master.commit(new Dir().put("README.md", "master".getBytes()), "master commit", ident);
+    develop.commit(new Dir().put("README.md", "initial".getBytes()).put("OTHER.md", "develop".getBytes()), "develop commit", new Ident("Other", "other@other.com"));
+    assertTrue(develop.mergeTo(master, ident));
+    assertEquals(4, index.size());
+    
+    int head = index.positionOf(master.head().getObjectId());
+    int initial = index.positionOf(master.listCommits().get(master.listCommits().size() - 1).getObjectId());
+    int other = index.positionOf(develop.head().getObjectId());
+    assertEquals(3, head);
+    assertEquals(0, initial);
+    assertTrue(index.isAncestor(initial, head));
+    assertTrue(index.isAncestor(other, head));
+    assertTrue(!index.isAncestor(head, other));
+    assertEquals(3, index.firstParents(head, 10).length);
+    assertTrue(Arrays.equals(new int[] { other }, index.commitsBy("Other", "other@other.com")));
+    assertEquals(4, index.commitsBetween(0, Integer.MAX_VALUE).length);
+    repo.close();
+    
+    // reopened index keeps commits, and indexes ones added meanwhile.
+    repo = GitRepository.getInstance(repo.getDirectory());
+    repo.branch("master").commit(new Dir().put("README.md", "again".getBytes()), "again commit", ident);
+    index = repo.enableHistoryIndex();
+    assertEquals(5, index.size());
+    assertEquals(repo.branch("master").head().getObjectId(), index.id(4));
+    assertEquals(head, index.parents(4)[0]);
+    repo.close();
+    
+    // clean up.
+    cleanUp(repo);
+  }
+
+  @Test
+  public void largeObjectStore() throws Exception {
+    GitRepository repo = prepareGit("largeObjectStore.git").initialize("README.md", "initial".getBytes(), "initial commit", ident);
+    LargeObjectStore store = repo.enableLargeObjectStore(1024);
+    File source = parepareDirectory("largeObjectStore.work");
+    File target = parepareDirectory("largeObjectStore.out");
+
+    byte[] large = new byte[100 * 1024];
+    new Random(1).nextBytes(large);
+    FileUtils.writeByteArrayToFile(new File(source, "large.bin"), large);
+    FileUtils.writeStringToFile(new File(source, "README.md"), "small");
+    Dir root = new Dir().put("large.bin", large).put("README.md", "small".getBytes());
+
+    Branch master  = repo.branch("master");
+    Commit commit = master.commit(root, "large commit", ident);
+    assertEquals(1, FileUtils.listFiles(store.getDirectory(), null, true).size());
+    assertEquals(commit.getTreeId(), repo.treeId(root));
+    assertTrue(Arrays.equals(large, IOUtils.toByteArray(commit.getStream("large.bin"))));
+    assertTrue(Arrays.equals(large, commit.getDir().file("large.bin").bytes()));
+    assertEquals("small", streamToString(commit.getStream("README.md")));
+
+    // same content from directory makes same tree.
+    assertEquals(commit.getTreeId(), master.commitFromDirectory(source.toPath(), "import", ident).getTreeId());
+
+    assertEquals(2, commit.materialize(target.toPath()));
+    assertTrue(Arrays.equals(large, FileUtils.readFileToByteArray(new File(target, "large.bin"))));
+
+    // reopened instance resolves pointers by config.
+    repo.close();
+    repo = GitRepository.getInstance(repo.getDirectory());
+    assertEquals(store.getDirectory().getCanonicalFile(), repo.largeObjectStore().getDirectory().getCanonicalFile());
+    assertTrue(Arrays.equals(large, IOUtils.toByteArray(repo.branch("master").head().getStream("large.bin"))));
+
+    // git-lfs pointers to objects not in store, as of imported repositories, are plain blobs.
+    StringBuilder oid = new StringBuilder();
+    for (int i = 0; i < 64; i++) {
+      oid.append('a');
+    }
+    byte[] foreign = ("version https://git-lfs.github.com/spec/v1\noid sha256:" + oid + "\nsize 12345\n").getBytes();
+    Commit pointer = repo.branch("master").commit(root.put("pointer.txt", foreign), "lfs pointer commit", ident);
+    assertTrue(Arrays.equals(foreign, IOUtils.toByteArray(pointer.getStream("pointer.txt"))));
+    assertTrue(Arrays.equals(foreign, pointer.getDir().file("pointer.txt").bytes()));
+    VerifyResult result = repo.verify();
+    assertTrue(result.toString(), result.isOk());
+
+    // replicas get store contents, or are refused without store.
+    GitRepository mirror = GitRepository.getInMemoryInstance("largeObjectStore-mirror");
+    try {
+      repo.replicateTo(mirror);
+      fail();
+    } catch (IOException e) {
+      // expected.
+    }
+    File mirrorStore = parepareDirectory("largeObjectStore.mirror");
+    mirror.enableLargeObjectStore(mirrorStore, 1024);
+    repo.replicateTo(mirror);
+    assertTrue(Arrays.equals(large, IOUtils.toByteArray(mirror.branch("master").head().getStream("large.bin"))));
+    mirror.close();
+    repo.close();
+
+    // clean up.
+    cleanUp(source);
+    cleanUp(target);
+    cleanUp(mirrorStore);
+    cleanUp(repo);
+  }
+
+  @Test
+  public void subscribe() throws Exception {
+    GitRepository repo = prepareGit("subscribe.git").initialize("README.md", "initial".getBytes(), "initial commit", ident);
+    final BlockingQueue<BranchEvent> events = new LinkedBlockingQueue<BranchEvent>();
+    Closeable subscription = repo.subscribe(new BranchListener() {
+      @Override
+      public void branchChanged(BranchEvent event) {
+        events.add(event);
+      }
+    });
+
+    // burst of commits is coalesced.
+    Branch master  = repo.branch("master");
+    for (int i = 0; i < 5; i++) {
+      master.commit(new Dir().put("README.md", ("burst" + i).getBytes()), "burst commit", ident);
+    }
+    BranchEvent event = events.poll(10, TimeUnit.SECONDS);
+    while (!event.newId.equals(master.head().getObjectId())) {
+      event = events.poll(10, TimeUnit.SECONDS);
+    }
+    assertEquals("master", event.branch);
+    assertTrue(events.size() < 5);
+
+    // updated by others.
+    events.clear();
+    GitRepository other = GitRepository.getInstance(repo.getDirectory());
+    other.branch("master").createNewBranch("develop");
+    event = events.poll(10, TimeUnit.SECONDS);
+    assertEquals("develop", event.branch);
+    assertTrue(event.isCreate());
+    assertEquals(master.head().getObjectId(), event.newId);
+    other.close();
+
+    subscription.close();
+    repo.close();
+
+    // clean up.
+    cleanUp(repo);
+  }
+
+  @Test
+  public void verify() throws Exception {
+    GitRepository repo = prepareGit("verify.git").initialize("README.md", "initial".getBytes(), "initial commit", ident);
+    Branch master  = repo.branch("master");
+    // directory sorts before file "b.md" in git tree order.
+    Commit commit = master.commit(new Dir()
+      .put("b.md", "b".getBytes())
+      .put("c.md", "c".getBytes())
+      .put(new Dir("a").put("1.md", "1".getBytes())), "verify commit", ident);
+    commit.addTag("v1", "tagged", ident);
+    master.createNewBranch("develop").commit(new Dir().put("b.md", "b".getBytes()), "develop commit", ident);
+
+    VerifyResult result = repo.verify();
+    assertTrue(result.toString(), result.isOk());
+    // 3 commits, 1 tag, 4 trees, 4 blobs
+    assertEquals(12, result.objectCount);
+
+    // break blobs in loose objects.
+    File objects = new File(repo.getDirectory(), "objects");
+    String b = ObjectId.fromRaw(Constants.newMessageDigest().digest("blob 1\0b".getBytes())).name();
+    String c = ObjectId.fromRaw(Constants.newMessageDigest().digest("blob 1\0c".getBytes())).name();
+    assertTrue(new File(objects, c.substring(0, 2) + "/" + c.substring(2)).delete());
+    File bFile = new File(objects, b.substring(0, 2) + "/" + b.substring(2));
+    bFile.delete();
+    try (DeflaterOutputStream out = new DeflaterOutputStream(new FileOutputStream(bFile))) {
+      out.write("blob 1\0x".getBytes());
+    }
+
+    result = repo.verify();
+    assertEquals(2, result.problems.size());
+    for (VerifyResult.Problem problem : result.problems) {
+      if (problem.objectId.name().equals(c)) {
+        assertEquals(VerifyResult.Kind.MISSING, problem.kind);
+        assertEquals(Arrays.asList(commit.getObjectId().name() + ":c.md"), problem.paths);
+      } else {
+        assertEquals(b, problem.objectId.name());
+        assertEquals(VerifyResult.Kind.CORRUPT, problem.kind);
+        assertEquals(2, problem.paths.size());
+      }
+    }
+    repo.close();
+
+    // clean up.
+    cleanUp(repo);
+  }
+
+  @Test
+  public void replicate() throws Exception {
+    GitRepository repo = prepareGit("replicate.git").initialize("README.md", "initial".getBytes(), "initial commit", ident);
+    GitRepository mirror = GitRepository.getInMemoryInstance("replicate-mirror");
+    File remote = parepareDirectory("replicate-remote.git");
+    GitRepository.getInstance(remote).close();
+
+    Branch master  = repo.branch("master");
+    Branch develop = master.createNewBranch("develop");
+    develop.commit(new Dir().put("OTHER.md", "develop".getBytes()), "develop commit", ident);
+    assertEquals(2, repo.replicateTo(mirror));
+    assertEquals(2, repo.replicateTo(new URIish(remote.getPath())));
+    assertEquals(0, repo.replicateTo(mirror));
+
+    // incremental and deleting.
+    master.commit(new Dir().put("README.md", "master".getBytes()), "master commit", ident);
+    develop.delete();
+    assertEquals(2, repo.replicateTo(mirror, "master", "develop"));
+    assertEquals(2, repo.replicateTo(new URIish(remote.getPath()), "master", "develop"));
+    GitRepository remoteRepo = GitRepository.getInstance(remote);
+    for (GitRepository replica : Arrays.asList(mirror, remoteRepo)) {
+      assertEquals(master.head().getObjectId(), replica.branch("master").head().getObjectId());
+      assertTrue(!replica.branch("develop").exists());
+      assertEquals("master", streamToString(replica.branch("master").head().getStream("README.md")));
+    }
+
+    // tags.
+    master.head().addTag("v1", "v1", ident);
+    assertEquals(1, repo.replicateTo(mirror, "master"));
+    assertEquals(1, repo.replicateTo(new URIish(remote.getPath()), "master"));
+    for (GitRepository replica : Arrays.asList(mirror, remoteRepo)) {
+      assertEquals("v1", replica.listTags().get(0).name);
+      assertEquals(master.head().getObjectId(), replica.listTags().get(0).getCommit().getObjectId());
+    }
+
+    // after each update.
+    try (Replicator replicator = Replicator.afterUpdate(repo, mirror)) {
+      master.commit(new Dir().put("README.md", "replicated".getBytes()), "replicated commit", ident);
+      replicator.flush();
+      assertEquals(master.head().getObjectId(), mirror.branch("master").head().getObjectId());
+      master.head().addTag("v2", "v2", ident);
+      replicator.flush();
+      assertEquals(2, mirror.listTags().size());
+    }
+    repo.close();
+    mirror.close();
+    remoteRepo.close();
+
+    // clean up.
+    cleanUp(repo);
+    cleanUp(remote);
+  }
+
+  @Test
+  public void blame() throws Exception {
+    GitRepository repo = prepareGit("blame.git").initialize("README.md", "a\nb\nc\n".getBytes(), "initial commit", ident);
+    RepositoryMetrics metrics = new RepositoryMetrics();
+    repo.addListener(metrics);
+
+    Branch master  = repo.branch("master");
+    Commit initial = master.head();
+    Commit second = master.commit(new Dir().put("README.md", "a\nB\nc\nd\n".getBytes()), "second commit", new Ident("Other", "other@other.com"));
+    Commit third = master.commit(new Dir().put("README.md", "a\nB\nc\nd\n".getBytes()).put("OTHER.md", "other".getBytes()), "third commit", ident);
+
+    List<BlameRange> ranges = third.blame("README.md");
+    assertEquals(4, ranges.size());
+    assertEquals(Arrays.asList(initial.getObjectId(), second.getObjectId(), initial.getObjectId(), second.getObjectId()),
+        Arrays.asList(ranges.get(0).commitId, ranges.get(1).commitId, ranges.get(2).commitId, ranges.get(3).commitId));
+    assertEquals(4, ranges.get(3).firstLine);
+    assertEquals("Other", ranges.get(1).author.getName());
+    assertEquals(ranges, second.blame("README.md"));
+
+    // cached, also after reopen, and derived from parent's.
+    metrics.reset();
+    assertEquals(ranges, third.blame("README.md"));
+    assertEquals(1.0, metrics.cacheHitRate("blame"), 0.0);
+    repo.close();
+    repo = GitRepository.getInstance(repo.getDirectory());
+    master = repo.branch("master");
+    assertEquals(ranges, master.head().blame("README.md"));
+    Commit fourth = master.commit(new Dir().put("README.md", "a\nB\nc\nd\ne\n".getBytes()), "fourth commit", ident);
+    ranges = fourth.blame("README.md");
+    assertEquals(5, ranges.size());
+    assertEquals(fourth.getObjectId(), ranges.get(4).commitId);
+    assertEquals(1, ranges.get(4).lineCount);
+    // only commits which changed the file and those asked for are written.
+    File blames = new File(repo.getDirectory(), "glitch/blame");
+    assertEquals(4, FileUtils.listFiles(blames, null, true).size());
+    master.commit(new Dir().put("README.md", "a\nB\nc\nd\ne\n".getBytes()).put("OTHER.md", "other".getBytes()), "fifth commit", ident);
+    Commit sixth = master.commit(new Dir().put("README.md", "a\nB\nc\nd\ne\nf\n".getBytes()).put("OTHER.md", "other".getBytes()), "sixth commit", ident);
+    ranges = sixth.blame("README.md");
+    assertEquals(fourth.getObjectId(), ranges.get(4).commitId);
+    assertEquals(sixth.getObjectId(), ranges.get(5).commitId);
+    assertEquals(5, FileUtils.listFiles(blames, null, true).size());
+    try {
+      fourth.blame("MISSING.md");
+      fail();
+    } catch (FileNotFoundException e) {
+      // expected.
+    }
+    repo.close();
+
+    // broken files are computed again.
+    for (File file : FileUtils.listFiles(blames, null, true)) {
+      new FileOutputStream(file).close();
+    }
+    repo = GitRepository.getInstance(repo.getDirectory());
+    assertEquals(ranges, repo.branch("master").head().blame("README.md"));
+    repo.close();
+
+    // clean up.
+    cleanUp(repo);
+  }
+
+  @Test
+  public void listDirectory() throws Exception {
+    GitRepository repo = prepareGit("listDirectory.git").initialize("README.md", "initial".getBytes(), "initial commit", ident);
+    RepositoryMetrics metrics = new RepositoryMetrics();
+    repo.addListener(metrics);
+
+    Branch master  = repo.branch("master");
+    Commit head = master.commit(new TreeBuilder()
+      .put("README.md", "readme".getBytes())
+      .put("src/a.md", "a".getBytes())
+      .put("src/b.md", "bb".getBytes())
+      .put("src/b/1.md", "1".getBytes())
+      .put("src/c.md", "ccc".getBytes()), "test commit", ident);
+
+    DirectoryListing first = head.listDirectory("src/", null, 2, true);
+    assertEquals(Arrays.asList("src/a.md", "src/b.md"), Arrays.asList(first.entries.get(0).path, first.entries.get(1).path));
+    assertEquals(2, first.entries.get(1).size);
+    assertTrue(first.hasMore());
+    DirectoryListing second = head.listDirectory("src", first.nextCursor, 2, true);
+    assertEquals(2, second.entries.size());
+    assertEquals("b", second.entries.get(0).name);
+    assertTrue(second.entries.get(0).isDirectory());
+    assertEquals(-1, second.entries.get(0).size);
+    assertEquals(3, second.entries.get(1).size);
+    assertTrue(!second.hasMore());
+
+    // sizes are cached by blob id.
+    metrics.reset();
+    head.listDirectory("src", null, 10, true);
+    assertEquals(1.0, metrics.cacheHitRate("size"), 0.0);
+    assertEquals(2, head.listDirectory(null, null, 10).entries.size());
+    try {
+      head.listDirectory("README.md", null, 10);
+      fail();
+    } catch (FileNotFoundException e) {
+      // expected.
+    }
+
+    // clean up.
+    cleanUp(repo);
+  }
+
+  @Test
+  public void compact() throws Exception {
+    GitRepository repo = prepareGit("compact.git").initialize("README.md", "initial".getBytes(), "initial commit", ident);
+    HistoryIndex index = repo.enableHistoryIndex();
+
+    Branch master  = repo.branch("master");
+    Commit first = master.commit(new Dir().put("README.md", "first".getBytes()), "first commit", ident);
+    first.addTag("dropped", "dropped", ident);
+    Commit second = master.commit(new Dir().put("README.md", "second".getBytes()), "second commit", ident);
+    Commit third = master.commit(new Dir().put("README.md", "third".getBytes()), "third commit", ident);
+    third.addTag("kept", "kept", ident);
+    Branch develop = master.createNewBranch("develop");
+    Commit fourth = master.commit(new Dir().put("README.md", "fourth".getBytes()), "fourth commit", ident);
+
+    repo.setRetentionPolicy("master", RetentionPolicy.keepCommits(2));
+    assertEquals(3, repo.compact(0, TimeUnit.MILLISECONDS));
+    List<Commit> commits = master.listCommits();
+    assertEquals(3, commits.size());
+    assertEquals(fourth.getTreeId(), master.head().getTreeId());
+    assertEquals("fourth commit", master.head().getComment());
+    assertEquals(second.getTreeId(), commits.get(2).getTreeId());
+    // develop still reaches dropped commits, so they and their tags stay.
+    assertEquals(third.getObjectId(), develop.head().getObjectId());
+    assertEquals(Arrays.asList("dropped", "kept"), Arrays.asList(repo.listTags().get(0).name, repo.listTags().get(1).name));
+    assertEquals(commits.get(1).getObjectId(), repo.listTags().get(1).getCommit().getObjectId());
+    // index holds rewritten commits and those develop reaches.
+    assertTrue(index.positionOf(master.head().getObjectId()) >= 0);
+    assertEquals(7, index.size());
+    assertEquals(0, repo.compact(0, TimeUnit.MILLISECONDS));
+
+    // without other branch, tags no branch reaches are deleted, also of commits dropped earlier, and history pruned.
+    File blames = new File(repo.getDirectory(), "glitch/blame");
+    master.head().blame("README.md");
+    assertEquals(3, FileUtils.listFiles(blames, null, true).size());
+    develop.delete();
+    master.commit(new Dir().put("README.md", "fifth".getBytes()), "fifth commit", ident);
+    Thread.sleep(1000);
+    assertEquals(2, repo.compact(0, TimeUnit.MILLISECONDS));
+    assertEquals(3, master.listCommits().size());
+    assertEquals(3, index.size());
+    assertEquals(master.head().getObjectId(), index.id(index.positionOf(master.head().getObjectId())));
+    assertEquals(HistoryIndex.NONE, index.positionOf(first.getObjectId()));
+    assertTrue(repo.listTags().isEmpty());
+    // so is blame of dropped commits.
+    assertEquals(0, FileUtils.listFiles(blames, null, true).size());
+    assertEquals(master.head().getObjectId(), master.head().blame("README.md").get(0).commitId);
+    assertEquals(3, FileUtils.listFiles(blames, null, true).size());
+    for (Commit pruned : Arrays.asList(first, second)) {
+      try {
+        repo.new Commit(pruned.getObjectId());
+        fail();
+      } catch (MissingObjectException e) {
+        // expected.
+      }
+    }
+
+    // tags compaction did not drop stay, also if no branch reaches them.
+    Branch feature = master.createNewBranch("feature");
+    Commit detached = feature.commit(new Dir().put("README.md", "feature".getBytes()), "feature commit", ident);
+    detached.addTag("unrelated", "unrelated", ident);
+    feature.delete();
+    master.commit(new Dir().put("README.md", "sixth".getBytes()), "sixth commit", ident);
+    Thread.sleep(1000);
+    assertEquals(2, repo.compact(0, TimeUnit.MILLISECONDS));
+    assertEquals(1, repo.listTags().size());
+    assertEquals(detached.getObjectId(), repo.listTags().get(0).getCommit().getObjectId());
+    repo.close();
+
+    // in-memory repository is repacked.
+    GitRepository memory = GitRepository.getInMemoryInstance("compact").initialize("README.md", "initial".getBytes(), "initial commit", ident);
+    memory.branch("master").commit(new Dir().put("README.md", "first".getBytes()), "first commit", ident);
+    memory.branch("master").commit(new Dir().put("README.md", "second".getBytes()), "second commit", ident);
+    memory.setRetentionPolicy("master", RetentionPolicy.keepCommits(1));
+    assertEquals(2, memory.compact());
+    assertEquals(2, memory.branch("master").listCommits().size());
+    assertEquals("second", streamToString(memory.branch("master").head().getStream("README.md")));
+    memory.close();
+
+    // merge across the cut keeps trees of both its parents.
+    memory = GitRepository.getInMemoryInstance("compact-merge").initialize("README.md", "initial".getBytes(), "initial commit", ident);
+    Branch main = memory.branch("master");
+    Branch side = main.createNewBranch("side");
+    Commit sideCommit = side.commit(new Dir().put("README.md", "initial".getBytes()).put("SIDE.md", "side".getBytes()), "side commit", ident);
+    Commit mainCommit = main.commit(new Dir().put("README.md", "main".getBytes()), "main commit", ident);
+    side.mergeTo(main, ident);
+    Commit merge = main.head();
+    main.commit(new Dir().put("README.md", "main".getBytes()).put("SIDE.md", "side".getBytes()).put("NEW.md", "new".getBytes()), "new commit", ident);
+    side.delete();
+    memory.setRetentionPolicy("master", RetentionPolicy.keepCommits(2));
+    assertEquals(3, memory.compact());
+    Commit rewrittenMerge = memory.new Commit(main.head().getParents().get(0).getObjectId());
+    assertEquals(merge.getTreeId(), rewrittenMerge.getTreeId());
+    List<Commit> parents = rewrittenMerge.getParents();
+    assertEquals(2, parents.size());
+    assertEquals(mainCommit.getTreeId(), memory.new Commit(parents.get(0).getObjectId()).getTreeId());
+    assertEquals(sideCommit.getTreeId(), memory.new Commit(parents.get(1).getObjectId()).getTreeId());
+    assertEquals(4, main.listCommits().size());
+    memory.close();
+
+    // clean up.
+    cleanUp(repo);
+  }
+
+  @Test
+  public void staleLock() throws Exception {
+    GitRepository repo = prepareGit("staleLock.git").initialize("README.md", "initial".getBytes(), "initial commit", ident);
+    Branch master  = repo.branch("master");
+    master.commit(new Dir().put("README.md", "second".getBytes()), "second commit", ident);
+    master.commit(new Dir().put("README.md", "third".getBytes()), "third commit", ident);
+
+    // lock left by a crashed process fails commit after bounded attempts, instead of spinning.
+    File lock = new File(repo.getDirectory(), "refs/heads/master.lock");
+    lock.getParentFile().mkdirs();
+    lock.createNewFile();
+    try {
+      master.commit(new Dir().put("README.md", "locked".getBytes()), "locked commit", ident);
+      fail();
+    } catch (IOException e) {
+      assertTrue(e.getMessage().contains("LOCK_FAILURE"));
+    }
+    // and so does compaction.
+    repo.setRetentionPolicy("master", RetentionPolicy.keepCommits(1));
+    try {
+      repo.compact();
+      fail();
+    } catch (IOException e) {
+      assertTrue(e.getMessage().contains("LOCK_FAILURE"));
+    }
+    lock.delete();
+    master.commit(new Dir().put("README.md", "unlocked".getBytes()), "unlocked commit", ident);
+    assertEquals("unlocked", streamToString(master.head().getStream("README.md")));
+
+    // clean up.
+    cleanUp(repo);
+  }
+
   private String streamToString(InputStream stream) throws Exception {
     String contentFromGit = null;
     try (BufferedReader br = new BufferedReader(new InputStreamReader(stream))){